@@ -0,0 +1,175 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Decoder for single characters of ASCII compatible encodings.  In
+ * these encodings all markup characters are single ASCII bytes and
+ * all bytes of other characters are above <TT>0x7f</TT>, so bytes
+ * can be scanned as ISO-8859-1 characters and only characters which
+ * need inspection have to be decoded.  Supported are UTF-8 and
+ * ASCII compatible single byte encodings.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+final class ByteDecoder {
+    /** replacement for malformed input */
+    private static final char REPLACEMENT = '\ufffd';
+
+    /** decoding table for single byte encodings, <TT>null</TT> for UTF-8 */
+    private final char[] table;
+
+    /**
+     * @param table decoding table or <TT>null</TT> for UTF-8
+     */
+    private ByteDecoder (char[] table) {
+        this.table = table;
+    }
+
+    /**
+     * @param encoding name of encoding
+     * @return decoder for given encoding
+     * @throws UnsupportedEncodingException when encoding is not
+     * supported or not ASCII compatible
+     */
+    static ByteDecoder forName (String encoding)
+    throws UnsupportedEncodingException {
+        Charset cs = null;
+        try {
+            cs = Charset.forName(encoding);
+        } catch (IllegalCharsetNameException ex) {
+            // handled below
+        } catch (UnsupportedCharsetException ex) {
+            // handled below
+        }
+        if (cs == null) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+        if (cs.name().equals("UTF-8")) {
+            return new ByteDecoder(null);
+        }
+
+        if (cs.canEncode() && cs.newEncoder().maxBytesPerChar() == 1.0f) {
+            byte[] b = new byte[256];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) i;
+            }
+            char[] table = new String(b, encoding).toCharArray();
+            boolean ascii = table.length == b.length;
+            for (int i = 0; ascii && i < 0x80; i++) {
+                ascii = table[i] == i;
+            }
+            if (ascii) {
+                return new ByteDecoder(table);
+            }
+        }
+        throw new UnsupportedEncodingException(encoding + " not ASCII compatible");
+    }
+
+    /**
+     * @param encoding name of encoding
+     * @return true when given encoding is supported
+     */
+    static boolean isSupported (String encoding) {
+        try {
+            forName(encoding);
+            return true;
+        } catch (UnsupportedEncodingException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param lead first byte of character
+     * @return number of bytes needed to decode character
+     */
+    int length (int lead) {
+        if (table != null || lead < 0xc2) {
+            return 1;
+        }
+        return lead < 0xe0 ? 2 : lead < 0xf0 ? 3 : lead < 0xf5 ? 4 : 1;
+    }
+
+    /**
+     * Count bytes in excess of decoded characters.  Summed over the
+     * bytes of well formed text this gives the number of bytes minus
+     * the number of UTF-16 characters, a character outside the basic
+     * multilingual plane counting as two.
+     * @param b byte
+     * @return number of bytes more than characters this byte adds
+     */
+    int excess (int b) {
+        if (table != null || b < 0x80) {
+            return 0;
+        }
+        if (b < 0xc0) {
+            // continuation byte
+            return 1;
+        }
+        return length(b) == 4 ? -1 : 0;
+    }
+
+    /**
+     * Decode the character starting at given position.  For
+     * characters outside the basic multilingual plane the high
+     * surrogate is returned.
+     * @param buf bytes as ISO-8859-1 characters
+     * @param off position of first byte
+     * @param end end of data in buffer
+     * @return decoded character, <TT>&#92;ufffd</TT> when malformed
+     */
+    char decode (char[] buf, int off, int end) {
+        int lead = buf[off];
+        if (table != null) {
+            return table[lead];
+        }
+        if (lead < 0x80) {
+            return (char) lead;
+        }
+
+        int len = length(lead);
+        if (len == 1 || off + len > end) {
+            return REPLACEMENT;
+        }
+        int second = buf[off + 1];
+        int min = lead == 0xe0 ? 0xa0 : lead == 0xf0 ? 0x90 : 0x80;
+        int max = lead == 0xed ? 0x9f : lead == 0xf4 ? 0x8f : 0xbf;
+        if (second < min || second > max) {
+            return REPLACEMENT;
+        }
+        int cp = lead & (0xff >> (len + 1));
+        for (int i = 1; i < len; i++) {
+            int b = buf[off + i];
+            if ((b & 0xc0) != 0x80) {
+                return REPLACEMENT;
+            }
+            cp = (cp << 6) | (b & 0x3f);
+        }
+        return cp > 0xffff ? (char) (0xd800 + ((cp - 0x10000) >> 10)) : (char) cp;
+    }
+}
@@ -70,6 +70,16 @@ public interface DocumentStructure {
      */
     String getEntityRef (String name);
 
+    /**
+     * Find longest known entity reference name at start of text.
+     * Ignoring character case if needed.
+     * @param text text to match
+     * @param start start of name in text
+     * @param end end of text
+     * @return length of name or <tt>0</tt> if no entity matches
+     */
+    int matchEntityRef (CharSequence text, int start, int end);
+
     /**
      * Determine if tag is known.
      * @param tag tag token to lookup
@@ -77,6 +87,22 @@ public interface DocumentStructure {
      */
     boolean isKnownTag (TagToken tag);
 
+    /**
+     * Get tag id.  Ids are small numbers, the same for every call
+     * with a name.
+     * @param name tag name
+     * @return tag id or <tt>-1</tt> if tag has no id
+     */
+    int getTagId (String name);
+
+    /**
+     * Determine if attribute is known.
+     * @param tag tag token holding attribute
+     * @param attr attribute name
+     * @return true if attribute is known for tag
+     */
+    boolean isKnownAttribute (TagToken tag, String attr);
+
     /**
      * Retain only known attributes.
      * <P><EM>TODO return number of modifications?</EM></P>
@@ -84,6 +110,15 @@ public interface DocumentStructure {
      */
     void retainKnownAttributes (TagToken tag);
 
+    /**
+     * Get close tag.  Close tags are written without attributes, the
+     * same instance may be returned for every call with a name and
+     * shared between threads, its attributes can not be modified.
+     * @param name tag name
+     * @return close tag
+     */
+    TagToken getCloseTag (String name);
+
     /**
      * Determine if tag can be placed into other tag.
      * @param parent top tag
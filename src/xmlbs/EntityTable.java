@@ -0,0 +1,208 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Trie of entity reference names.  Names are stored by their lower
+ * case characters so looking up a name ignoring character case
+ * takes no more than a walk down the trie, as does finding the
+ * longest known name at the start of some text.  When names only
+ * differ in character case the first one given is used when
+ * ignoring case.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public final class EntityTable {
+    /** root of trie */
+    private final Node root = new Node();
+
+    /**
+     * @param names entity names
+     */
+    public EntityTable (Collection names) {
+        for (Iterator it = names.iterator(); it.hasNext();) {
+            String name = (String) it.next();
+            Node node = root;
+            for (int i = 0, l = name.length(); i < l; i++) {
+                node = node.add(Character.toLowerCase(name.charAt(i)));
+            }
+            node.addName(name);
+        }
+    }
+
+    /**
+     * Lookup entity name.
+     * @param name entity name
+     * @param icase true to ignore character case
+     * @return entity name in proper case or <TT>null</TT> if unknown
+     */
+    public String get (CharSequence name, boolean icase) {
+        return get(name, 0, name.length(), icase);
+    }
+
+    /**
+     * Lookup entity name in part of text.
+     * @param text text holding name
+     * @param start start of name
+     * @param end end of name
+     * @param icase true to ignore character case
+     * @return entity name in proper case or <TT>null</TT> if unknown
+     */
+    public String get (CharSequence text, int start, int end, boolean icase) {
+        Node node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.get(Character.toLowerCase(text.charAt(i)));
+        }
+        return node == null ? null : node.getName(text, start, end, icase);
+    }
+
+    /**
+     * Find longest known entity name at start of text.
+     * @param text text to match
+     * @param start start of name
+     * @param end end of text
+     * @param icase true to ignore character case
+     * @return length of name or 0 when no name matches
+     */
+    public int match (CharSequence text, int start, int end, boolean icase) {
+        int len = 0;
+        Node node = root;
+        for (int i = start; i < end; i++) {
+            node = node.get(Character.toLowerCase(text.charAt(i)));
+            if (node == null) {
+                break;
+            }
+            if (node.getName(text, start, i + 1, icase) != null) {
+                len = i + 1 - start;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Node in trie.
+     */
+    private static final class Node {
+        /** lower case characters of children in sorted order */
+        private char[] keys = new char[0];
+        /** children in order of keys */
+        private Node[] next = new Node[0];
+        /** names ending at this node, <TT>null</TT> if none */
+        private String[] names = null;
+
+        /**
+         * @param c lower case character
+         * @return child for character or <TT>null</TT>
+         */
+        Node get (char c) {
+            int i = indexOf(c);
+            return i >= 0 ? next[i] : null;
+        }
+
+        /**
+         * @param c lower case character
+         * @return child for character, created when needed
+         */
+        Node add (char c) {
+            int i = indexOf(c);
+            if (i >= 0) {
+                return next[i];
+            }
+            i = -(i + 1);
+            char[] k = new char[keys.length + 1];
+            Node[] n = new Node[k.length];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(next, 0, n, 0, i);
+            System.arraycopy(keys, i, k, i + 1, keys.length - i);
+            System.arraycopy(next, i, n, i + 1, next.length - i);
+            k[i] = c;
+            n[i] = new Node();
+            keys = k;
+            next = n;
+            return n[i];
+        }
+
+        /**
+         * @param name name ending at this node
+         */
+        void addName (String name) {
+            if (names == null) {
+                names = new String[] { name };
+            } else {
+                String[] n = new String[names.length + 1];
+                System.arraycopy(names, 0, n, 0, names.length);
+                n[names.length] = name;
+                names = n;
+            }
+        }
+
+        /**
+         * @param text text holding name
+         * @param start start of name
+         * @param end end of name
+         * @param icase true to ignore character case
+         * @return name at this node matching given name
+         */
+        String getName (CharSequence text, int start, int end, boolean icase) {
+            if (names == null) {
+                return null;
+            }
+            // exact match first
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                int j = 0;
+                while (j < end - start && name.charAt(j) == text.charAt(start + j)) {
+                    j++;
+                }
+                if (j == end - start) {
+                    return name;
+                }
+            }
+            return icase ? names[0] : null;
+        }
+
+        /**
+         * @param c lower case character
+         * @return index of character in keys or
+         * <TT>-(insertion point + 1)</TT>
+         */
+        private int indexOf (char c) {
+            int lo = 0;
+            int hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < c) {
+                    lo = mid + 1;
+                } else if (keys[mid] > c) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+    }
+}
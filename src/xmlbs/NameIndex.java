@@ -0,0 +1,142 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Hash table of names keyed by their lower case characters.  Names
+ * are hashed and compared character by character, so looking up a
+ * name ignoring character case takes one probe without creating a
+ * lower case copy, also for part of a larger text.  When names only
+ * differ in character case the first one given is used when
+ * ignoring case.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public final class NameIndex {
+    /** names by slot, names only differing in case share a slot */
+    private final String[][] slots;
+    /** mask to map hash codes to slots */
+    private final int mask;
+
+    /**
+     * @param names names to index
+     */
+    public NameIndex (Collection names) {
+        int size = 2;
+        while (size < names.size() * 2) {
+            size <<= 1;
+        }
+        slots = new String[size][];
+        mask = size - 1;
+
+        for (Iterator it = names.iterator(); it.hasNext();) {
+            String name = (String) it.next();
+            int i = slot(name, 0, name.length());
+            String[] l = slots[i];
+            if (l == null) {
+                slots[i] = new String[] { name };
+            } else {
+                slots[i] = new String[l.length + 1];
+                System.arraycopy(l, 0, slots[i], 0, l.length);
+                slots[i][l.length] = name;
+            }
+        }
+    }
+
+    /**
+     * Lookup name.
+     * @param name name
+     * @param icase true to ignore character case
+     * @return name in proper case or <TT>null</TT> if unknown
+     */
+    public String get (CharSequence name, boolean icase) {
+        return get(name, 0, name.length(), icase);
+    }
+
+    /**
+     * Lookup name in part of text.
+     * @param text text holding name
+     * @param start start of name
+     * @param end end of name
+     * @param icase true to ignore character case
+     * @return name in proper case or <TT>null</TT> if unknown
+     */
+    public String get (CharSequence text, int start, int end, boolean icase) {
+        String[] l = slots[slot(text, start, end)];
+        if (l == null) {
+            return null;
+        }
+        // exact match first
+        for (int i = 0; i < l.length; i++) {
+            if (equals(l[i], text, start, end, false)) {
+                return l[i];
+            }
+        }
+        return icase ? l[0] : null;
+    }
+
+    /**
+     * @param text text holding name
+     * @param start start of name
+     * @param end end of name
+     * @return slot of names matching name ignoring case or free slot
+     */
+    private int slot (CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(text.charAt(i));
+        }
+        int i = (h ^ (h >>> 16)) & mask;
+        while (slots[i] != null && !equals(slots[i][0], text, start, end, true)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @param name name
+     * @param text text holding other name
+     * @param start start of other name
+     * @param end end of other name
+     * @param icase true to ignore character case
+     * @return true if names are equal
+     */
+    private static boolean equals (String name, CharSequence text,
+                                   int start, int end, boolean icase) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char a = name.charAt(i);
+            char b = text.charAt(start + i);
+            if (a != b && (!icase
+                    || Character.toLowerCase(a) != Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
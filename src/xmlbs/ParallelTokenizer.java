@@ -0,0 +1,285 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import xmlbs.tokens.CharSlice;
+import xmlbs.tokens.TagCache;
+import xmlbs.tokens.TextToken;
+import xmlbs.tokens.Token;
+
+/**
+ * Tokenizer reading large documents using multiple threads.  The
+ * document is split into chunks starting at &lt; characters which
+ * are tokenized in parallel, each as if no markup was being read at
+ * its start.  The results are stitched together in document order.
+ * Text split over chunks is joined and where markup read by a chunk
+ * runs into following chunks, the results for those chunks are
+ * dropped and the document is tokenized sequentially up to the next
+ * chunk which starts where a token ended.  The result equals that of
+ * {@link Tokenizer#readAllTokens()}.
+ * <P>
+ * Like {@link Tokenizer#Tokenizer(char[], int, int, DocumentStructure)}
+ * the tokens read refer to ranges of the array read from.</P>
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public class ParallelTokenizer {
+    /** default minimal chunk size */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    /** array to read */
+    private char[] data;
+    /** offset of data in array */
+    private int off;
+    /** end of data in array */
+    private int end;
+    /** document structure */
+    private DocumentStructure ds;
+    /** minimal size of chunk */
+    private int chunkSize = CHUNK_SIZE;
+    /** maximum length of tags */
+    private int maxTagLength = Integer.MAX_VALUE;
+    /** cache of parsed tags shared by all chunks or <TT>null</TT> */
+    private TagCache tagCache = null;
+
+    /**
+     * Construct tokenizer reading from a character array.  The
+     * tokens read refer to ranges of the array, it must not be
+     * modified as long as they are in use.
+     * @param data array to read
+     * @param off offset of data in array
+     * @param len length of data
+     * @param ds document structure
+     */
+    public ParallelTokenizer (char[] data, int off, int len,
+            DocumentStructure ds) {
+        this.data = data;
+        this.off = off;
+        this.end = off + len;
+        this.ds = ds;
+    }
+
+    /**
+     * Construct tokenizer reading from string.
+     * @param data string to read
+     * @param ds document structure
+     */
+    public ParallelTokenizer (String data, DocumentStructure ds) {
+        this(data.toCharArray(), 0, data.length(), ds);
+    }
+
+    /**
+     * @param chunkSize minimal size of chunks tokenized in parallel
+     */
+    public void setChunkSize (int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxTagLength maximum number of characters between
+     * &lt; and &gt; of a tag
+     * @see Tokenizer#setMaxTagLength(int)
+     */
+    public void setMaxTagLength (int maxTagLength) {
+        this.maxTagLength = maxTagLength;
+    }
+
+    /**
+     * @param tagCache cache of parsed tags shared by all threads or
+     * <TT>null</TT> to parse every tag
+     * @see Tokenizer#setTagCache(TagCache)
+     */
+    public void setTagCache (TagCache tagCache) {
+        this.tagCache = tagCache;
+    }
+
+    /**
+     * Read all tokens.
+     * @param threads number of threads to use
+     * @return list of read tokens
+     * @throws IOException never, for symmetry with {@link Tokenizer}
+     */
+    public List readAllTokens (int threads)
+    throws IOException {
+        // split into chunks at < characters
+        int n = Math.max(1, Math.min(threads * 4, (end - off) / chunkSize));
+        int[] starts = new int[n + 1];
+        int count = 0;
+        starts[count++] = off;
+        for (int i = 1; i < n; i++) {
+            int p = Math.max(off + (int) ((long) (end - off) * i / n),
+                    starts[count - 1] + 1);
+            while (p < end && data[p] != '<') {
+                p++;
+            }
+            if (p >= end) {
+                break;
+            }
+            starts[count++] = p;
+        }
+        starts[count] = end;
+
+        // tokenize chunks in parallel
+        final Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = new Chunk(starts[i], starts[i + 1]);
+        }
+        if (count > 1) {
+            final int[] next = new int[1];
+            Thread[] workers = new Thread[Math.min(threads, count)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Thread() {
+                    public void run () {
+                        for (;;) {
+                            int j;
+                            synchronized (next) {
+                                j = next[0]++;
+                            }
+                            if (j >= chunks.length) {
+                                break;
+                            }
+                            chunks[j].tokenize(false);
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for (int i = 0; i < workers.length; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+
+        // stitch results, tokenize again where chunks don't line up
+        List result = new ArrayList();
+        int pending = -1;
+        for (int p = off, i = 0; p < end;) {
+            while (i < count && starts[i] < p) {
+                i++;
+            }
+            Chunk chunk;
+            if (i < count && starts[i] == p) {
+                chunk = chunks[i];
+            } else {
+                chunk = new Chunk(p, i < count ? starts[i] : end);
+            }
+            chunk.tokenize(true);
+
+            List tokens = chunk.tokens;
+            int from = 0;
+            if (pending != -1) {
+                // join text with text left by previous chunk
+                if (tokens.size() == 0) {
+                    from = -1;
+                } else if (tokens.get(0) instanceof TextToken) {
+                    int len = ((TextToken) tokens.get(0)).getData().length();
+                    result.add(text(pending, p + len));
+                    from = 1;
+                } else if (pending < p) {
+                    result.add(text(pending, p));
+                }
+            }
+            if (from != -1) {
+                result.addAll(tokens.subList(from, tokens.size()));
+                pending = chunk.pending;
+            }
+            p = chunk.position;
+        }
+        return result;
+    }
+
+    /**
+     * @param from start of text
+     * @param to end of text
+     * @return text token for given range
+     */
+    private Token text (int from, int to) {
+        return new TextToken(new CharSlice(data, from, to - from), ds);
+    }
+
+    /**
+     * Chunk of data to tokenize.
+     */
+    private class Chunk {
+        /** start of chunk */
+        private int start;
+        /** end of chunk */
+        private int limit;
+        /** tokens read, <TT>null</TT> when not read yet */
+        private List tokens = null;
+        /** exception thrown while reading */
+        private RuntimeException failure = null;
+        /** position reading stopped at */
+        private int position;
+        /** start of text not returned, <TT>-1</TT> if none */
+        private int pending;
+
+        /**
+         * @param start start of chunk
+         * @param limit end of chunk
+         */
+        Chunk (int start, int limit) {
+            this.start = start;
+            this.limit = limit;
+        }
+
+        /**
+         * Tokenize chunk if not done yet.  Exceptions are kept until
+         * the result is really needed, they may be caused by wrongly
+         * guessing no markup is being read at the start of the chunk.
+         * @param needed true when the result is needed
+         */
+        void tokenize (boolean needed) {
+            if (tokens == null && failure == null) {
+                Tokenizer tok = new Tokenizer(data, start, end - start,
+                        limit, ds);
+                tok.setMaxTagLength(maxTagLength);
+                tok.setTagCache(tagCache);
+                try {
+                    List l = new ArrayList();
+                    for (Token t; (t = tok.readToken()) != null;) {
+                        l.add(t);
+                    }
+                    position = limit < end ? tok.getPosition() : end;
+                    pending = tok.getPendingText();
+                    tokens = l;
+                } catch (IOException ex) {
+                    // can't happen reading from an array
+                    failure = new RuntimeException(ex);
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                }
+            }
+            if (needed && failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
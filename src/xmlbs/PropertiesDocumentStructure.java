@@ -21,7 +21,15 @@
 
 package xmlbs;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -30,8 +38,11 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.zip.CRC32;
 
+import xmlbs.tokens.Attributes;
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.TextToken;
 import xmlbs.tokens.Token;
@@ -57,28 +68,47 @@ import xmlbs.tokens.Token;
  * _cell: #TEXT table $colspan $rowspan 
  * &amp;: nbsp
  * </pre>
+ * Use a {@link Builder} for a document structure which is shared
+ * between threads.  A compiled document structure can be written
+ * to a snapshot with {@link #writeSnapshot(OutputStream)}, reading
+ * it back is quicker than parsing properties.  A snapshot holds a
+ * checksum of the properties it was made from, to notice when they
+ * changed since.
  *
  * @author R.W. van 't Veer
  * @version $Revision: 1.10 $
  */
 public class PropertiesDocumentStructure implements DocumentStructure {
-    /** set to keep tag names */
-    private Set tagNames = new HashSet();
-    /** set to keep entity names */
-    private Set entityNames = new HashSet();
-    /** map to keep tag attributes */
-    private Map tagAttributes = new HashMap();
-    /** map to keep lists of possible tag parents */
-    private Map tagHierarchy = new HashMap();
+    /** snapshot magic number, <tt>xmlb</tt> in ASCII */
+    private static final int MAGIC = 0x786d6c62;
+    /** snapshot format version */
+    private static final int VERSION = 2;
+
+    /** entity names */
+    private final String[] entityNames;
+    /** trie of entity names */
+    private final EntityTable entityTable;
+    /** compiled tag hierarchy */
+    private final TagTable tagTable;
+    /** checksum of properties compiled */
+    private final long checksum;
+    /** index of tag names */
+    private final NameIndex tagIndex;
+    /** indexes of tag attributes by tag id */
+    private final NameIndex[] attributeIndexes;
+    /** map to keep shared close tags */
+    private final Map closeTags = new HashMap();
     /** ignore case flag */
-    private boolean icase = false;
+    private volatile boolean icase;
+    /** true when ignore case flag can not be changed */
+    private final boolean frozen;
 
     /**
      * @param prop properties map describing possible parent tags
      * and attributes
      */
     public PropertiesDocumentStructure (Properties prop) {
-	setup(prop);
+	this(new Schema(prop), false, false);
     }
 
     /**
@@ -89,103 +119,141 @@ public class PropertiesDocumentStructure implements DocumentStructure {
      */
     public PropertiesDocumentStructure (String resource)
     throws IOException {
-	Properties prop = new Properties();
-	prop.load(ClassLoader.getSystemResourceAsStream(resource));
-	setup(prop);
+	this(new Schema(load(resource)), false, false);
     }
 
     /**
-     * Initialize syntax maps from properties.
-     * @param prop properties to initialize from
+     * @param schema compiled properties
+     * @param icase true where character case should be ignored
+     * @param frozen true when ignore case flag can not be changed
      */
-    private void setup (Properties prop) {
-	// collect tag names
-	{
-	    tagNames.addAll(prop.keySet());
-	    for (Iterator it = tagNames.iterator(); it.hasNext();) {
-		String key = (String) it.next();
-		if (key.startsWith("_")) {
-		    it.remove();
-		}
+    private PropertiesDocumentStructure (Schema schema, boolean icase,
+					 boolean frozen) {
+	entityNames = schema.entityNames;
+	entityTable = new EntityTable(Arrays.asList(entityNames));
+	tagTable = schema.tagTable;
+	checksum = schema.checksum;
+
+	// index names and create close tags
+	List tagNames = new Vector();
+	attributeIndexes = new NameIndex[tagTable.size()];
+	for (int i = 0; i < attributeIndexes.length; i++) {
+	    attributeIndexes[i] = new NameIndex(tagTable.getAttributes(i));
+	    if (tagTable.isKnown(i)) {
+		String key = tagTable.getName(i);
+		tagNames.add(key);
+		closeTags.put(key, new TagToken(key, Attributes.EMPTY, TagToken.CLOSE));
 	    }
 	}
+	tagIndex = new NameIndex(tagNames);
 
-	// create "master" map by resolving all includes
-	Map master = new HashMap();
-	for (Iterator it = tagNames.iterator(); it.hasNext();) {
-	    String key = (String) it.next();
-	    master.put(key, include(prop, key));
-	}
+	this.icase = icase;
+	this.frozen = frozen;
+    }
 
-	// collect entity names
-	{
-	    entityNames.add("amp");
-	    entityNames.add("gt");
-	    entityNames.add("lt");
+    /**
+     * Read document structure from snapshot.
+     * @param in stream to read from
+     * @return document structure
+     * @throws IOException when reading fails or stream does not hold
+     * a snapshot
+     * @see #writeSnapshot(OutputStream)
+     */
+    public static PropertiesDocumentStructure readSnapshot (InputStream in)
+    throws IOException {
+	return new PropertiesDocumentStructure(new Schema(in), false, false);
+    }
 
-	    List l = (List) master.get("&");
-	    if (l != null) {
-		entityNames.addAll(l);
-		master.remove("&");
-		tagNames.remove("&");
-	    }
+    /**
+     * Write snapshot of compiled document structure.  Reading a
+     * snapshot skips parsing and resolving properties.
+     * @param out stream to write to
+     * @throws IOException when writing fails
+     * @see #readSnapshot(InputStream)
+     * @see Builder#readSnapshot(InputStream)
+     */
+    public void writeSnapshot (OutputStream out)
+    throws IOException {
+	DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+	data.writeInt(MAGIC);
+	data.writeInt(VERSION);
+	data.writeLong(checksum);
+	tagTable.write(data);
+	data.writeInt(entityNames.length);
+	for (int i = 0; i < entityNames.length; i++) {
+	    data.writeUTF(entityNames[i]);
 	}
+	data.flush();
+    }
 
-	// create hierarchy map from master
-	for (Iterator it = tagNames.iterator(); it.hasNext();) {
-	    String key = (String) it.next();
-	    List l = new Vector((List) master.get(key));
-	    // remove attribute info
-	    for (Iterator it0 = l.iterator(); it0.hasNext();) {
-		String key0 = (String) it0.next();
-		if (key0.startsWith("$")) {
-		    it0.remove();
-		}
-	    }
-	    tagHierarchy.put(key, l);
+    /**
+     * Write snapshot of document structure for properties file.
+     * @param args properties resource name and snapshot file name
+     * @throws IOException when reading or writing fails
+     */
+    public static void main (String[] args)
+    throws IOException {
+	if (args.length != 2) {
+	    System.err.println("java " + PropertiesDocumentStructure.class.getName()
+		    + " RESOURCE SNAPSHOT");
+	    System.exit(-1);
 	}
+	OutputStream out = new FileOutputStream(args[1]);
+	new PropertiesDocumentStructure(args[0]).writeSnapshot(out);
+	out.close();
+    }
 
-	// create attribute map from master
-	for (Iterator it = tagNames.iterator(); it.hasNext();) {
-	    String key = (String) it.next();
-	    List in = new Vector((List) master.get(key));
-	    List l = new Vector();
-	    // copy attribute only info to list
-	    for (Iterator it0 = in.iterator(); it0.hasNext();) {
-		String key0 = (String) it0.next();
-		if (key0.startsWith("$")) {
-		    l.add(key0.substring(1));
-		}
-	    }
-	    tagAttributes.put(key, l);
+    /**
+     * @param resource location of the properties file loadable
+     * as resource
+     * @return properties
+     * @throws IOException when resource loading fails
+     * @throws NullPointerException when resource does not exist
+     */
+    private static Properties load (String resource)
+    throws IOException {
+	Properties prop = new Properties();
+	prop.load(ClassLoader.getSystemResourceAsStream(resource));
+	return prop;
+    }
+
+    /**
+     * @param prop properties
+     * @return checksum of property keys and values
+     */
+    private static long checksum (Properties prop) {
+	CRC32 crc = new CRC32();
+	for (Iterator it = new TreeMap(prop).entrySet().iterator(); it.hasNext();) {
+	    Map.Entry e = (Map.Entry) it.next();
+	    update(crc, (String) e.getKey());
+	    update(crc, (String) e.getValue());
 	}
+	return crc.getValue();
     }
 
     /**
-     * @param prop properties to read from
-     * @param key to read
-     * @return fully dereferenced list
+     * @param crc checksum to update
+     * @param s string to add, followed by a zero character
      */
-    private List include(Properties prop, String key) {
-	List l = new Vector();
-	StringTokenizer st = new StringTokenizer(prop.getProperty(key));
-	while (st.hasMoreTokens()) {
-	    String v = st.nextToken();
-	    if (v.startsWith("_")) {
-		l.addAll(include(prop, v));
-	    } else {
-		l.add(v);
-	    }
+    private static void update (CRC32 crc, String s) {
+	for (int i = 0; i <= s.length(); i++) {
+	    char c = i < s.length() ? s.charAt(i) : 0;
+	    crc.update(c >> 8);
+	    crc.update(c);
 	}
-	return l;
     }
 
     /**
      * Set ignore case flag for matching tagnames, attributes and
      * entities.
      * @param icase true where character case should be ignored
+     * @throws UnsupportedOperationException when built by a
+     * {@link Builder}
      */
     public void setIgnoreCase (boolean icase) {
+	if (frozen) {
+	    throw new UnsupportedOperationException("frozen");
+	}
 	this.icase = icase;
     }
 
@@ -200,7 +268,6 @@ public class PropertiesDocumentStructure implements DocumentStructure {
     /**
      * Get tag name.
      * Ignoring character case if needed.
-     * Add icase-tag-name-set for speed.
      * @param name tag name to lookup
      * @return tag name in proper case
      */
@@ -209,14 +276,9 @@ public class PropertiesDocumentStructure implements DocumentStructure {
 	    return name;
 	}
 
-	String in = name.toLowerCase();
-	for (Iterator it = tagNames.iterator(); it.hasNext();) {
-	    String n = (String) it.next();
-	    if (n.toLowerCase().equals(in)) {
-		return n;
-	    }
-	}
-	return name;
+	// exact match first, then a lower case match
+	String n = tagIndex.get(name, true);
+	return n == null ? name : n;
     }
 
     /**
@@ -227,30 +289,25 @@ public class PropertiesDocumentStructure implements DocumentStructure {
      * <tt>null</tt> if no such entity exists
      */
     public String getEntityRef (String name) {
-	if (!icase) {
-	    return entityNames.contains(name) ? name : null;
-	}
-
-	// try exact match first
-	if (entityNames.contains(name)) {
-	    return name;
-	}
+	// exact match first, then a lower case match if needed
+	return entityTable.get(name, icase);
+    }
 
-	// find a lower case match
-	String in = name.toLowerCase();
-	for (Iterator it = entityNames.iterator(); it.hasNext();) {
-	    String n = (String) it.next();
-	    if (n.toLowerCase().equals(in)) {
-		return n;
-	    }
-	}
-	return null;
+    /**
+     * Find longest known entity reference name at start of text.
+     * Ignoring character case if needed.
+     * @param text text to match
+     * @param start start of name in text
+     * @param end end of text
+     * @return length of name or <tt>0</tt> if no entity matches
+     */
+    public int matchEntityRef (CharSequence text, int start, int end) {
+	return entityTable.match(text, start, end, icase);
     }
 
     /**
      * Get attribute name.
      * Ignoring character case if needed.
-     * Add icase-attribute-name-set for speed.
      * @param name tag name to lookup
      * @param attr attribute name to lookup
      * @return attribute name in proper case or the value of
@@ -260,41 +317,60 @@ public class PropertiesDocumentStructure implements DocumentStructure {
 	if (!icase) {
 	    return attr;
 	}
-	List names = (List) tagAttributes.get(name);
-	if (names == null) {
+	int id = tagTable.getId(name);
+	if (id < 0) {
 	    return attr;
 	}
-	String in = attr.toLowerCase();
-	for (Iterator it = names.iterator(); it.hasNext();) {
-	    String n = (String) it.next();
-	    if (n.toLowerCase().equals(in)) {
-		return n;
-	    }
-	}
-	return attr;
-    }
 
+	// exact match first, then a lower case match
+	String n = attributeIndexes[id].get(attr, true);
+	return n == null ? attr : n;
+    }
 
     /**
      * @param tag a tag token
      * @return true if tag is known
      */
     public boolean isKnownTag (TagToken tag) {
-	return tagNames.contains(tag.getName());
+	return tagTable.isKnown(tag.getId(this));
+    }
+
+    /**
+     * @param name tag name
+     * @return tag id or <tt>-1</tt> if tag has no id
+     */
+    public int getTagId (String name) {
+	return tagTable.getId(name);
+    }
+
+    /**
+     * @param tag tag token holding attribute
+     * @param attr attribute name
+     * @return true if attribute is known for tag
+     */
+    public boolean isKnownAttribute (TagToken tag, String attr) {
+	return tagTable.hasAttribute(tag.getId(this), tagTable.getAttributeId(attr));
     }
 
     /**
      * @param tag retain known attributes in this tag
+     * @see TagToken#retainAttributes(DocumentStructure)
      */
     public void retainKnownAttributes (TagToken tag) {
-	List names = (List) tagAttributes.get(tag.getName());
-	Iterator it = tag.getAttributes().entrySet().iterator();
-	while (it.hasNext()) {
-	    Map.Entry en = (Map.Entry) it.next();
-	    if (!names.contains(en.getKey())) {
-		it.remove();
-	    }
+	tag.retainAttributes(this);
+    }
+
+    /**
+     * @param name tag name
+     * @return shared close tag for known tags, a new close tag
+     * otherwise
+     */
+    public TagToken getCloseTag (String name) {
+	TagToken tag = (TagToken) closeTags.get(name);
+	if (tag == null) {
+	    tag = new TagToken(name, Attributes.EMPTY, TagToken.CLOSE);
 	}
+	return tag;
     }
 
     /**
@@ -303,14 +379,13 @@ public class PropertiesDocumentStructure implements DocumentStructure {
      * @return true if parent can contain child
      */
     public boolean canContain (TagToken parent, Token child) {
-	String parentName = parent == null ? "@ROOT" : parent.getName();
+	int parentId = parent == null ? tagTable.getRootId() : parent.getId(this);
 
-	List hier = (List) tagHierarchy.get(parentName);
 	if (child instanceof TextToken) {
-	    return hier.contains("#TEXT");
+	    return tagTable.canContain(parentId, tagTable.getTextId());
 	} else if (child instanceof TagToken) {
 	    TagToken childtag = (TagToken) child;
-	    return hier.contains(childtag.getName());
+	    return tagTable.canContain(parentId, childtag.getId(this));
 	}
 	return false;
     }
@@ -319,8 +394,264 @@ public class PropertiesDocumentStructure implements DocumentStructure {
      * @return debug info
      */
     public String toString () {
-	return "names=" + tagNames + "\n"
-		+ "attributes=" + tagAttributes + "\n"
-		+ "hierarchy=" + tagHierarchy;
+	return tagTable + "\n"
+		+ "entities=" + Arrays.asList(entityNames);
+    }
+
+    /**
+     * Builder for document structures which can not be changed once
+     * built.  Built document structures are safe to share between
+     * any number of threads:
+     * <pre>
+     * DocumentStructure ds = new PropertiesDocumentStructure.Builder()
+     *     .load("xmlbs/html.properties").setIgnoreCase(true).build();
+     * </pre>
+     */
+    public static class Builder {
+	/** compiled properties to build from */
+	private Schema schema = null;
+	/** ignore case flag */
+	private boolean icase = false;
+
+	/**
+	 * @param prop properties map describing possible parent tags
+	 * and attributes
+	 * @return this builder
+	 */
+	public Builder setProperties (Properties prop) {
+	    this.schema = new Schema(prop);
+	    return this;
+	}
+
+	/**
+	 * @param resource location of the properties file loadable
+	 * as resource
+	 * @return this builder
+	 * @throws IOException when resource loading fails
+	 * @throws NullPointerException when resource does not exist
+	 */
+	public Builder load (String resource)
+	throws IOException {
+	    this.schema = new Schema(PropertiesDocumentStructure.load(resource));
+	    return this;
+	}
+
+	/**
+	 * @param in stream to read snapshot from
+	 * @return this builder
+	 * @throws IOException when reading fails or stream does not
+	 * hold a snapshot
+	 * @see PropertiesDocumentStructure#writeSnapshot(OutputStream)
+	 */
+	public Builder readSnapshot (InputStream in)
+	throws IOException {
+	    this.schema = new Schema(in);
+	    return this;
+	}
+
+	/**
+	 * Read snapshot unless it was made from other properties,
+	 * compile properties in that case.
+	 * @param in stream to read snapshot from
+	 * @param prop properties the snapshot should be made from
+	 * @return this builder
+	 * @throws IOException when reading fails or stream does not
+	 * hold a snapshot
+	 */
+	public Builder readSnapshot (InputStream in, Properties prop)
+	throws IOException {
+	    Schema snapshot = new Schema(in);
+	    this.schema = snapshot.checksum == checksum(prop)
+		? snapshot : new Schema(prop);
+	    return this;
+	}
+
+	/**
+	 * Load properties using a snapshot when it is available, can
+	 * be read and is made from the same properties.
+	 * @param resource location of the properties file loadable
+	 * as resource
+	 * @param snapshot location of the snapshot loadable as
+	 * resource
+	 * @return this builder
+	 * @throws IOException when properties resource loading fails
+	 * @throws NullPointerException when properties resource does
+	 * not exist
+	 * @see PropertiesDocumentStructure#main(String[])
+	 */
+	public Builder load (String resource, String snapshot)
+	throws IOException {
+	    Properties prop = PropertiesDocumentStructure.load(resource);
+	    InputStream in = ClassLoader.getSystemResourceAsStream(snapshot);
+	    if (in != null) {
+		try {
+		    return readSnapshot(in, prop);
+		} catch (IOException e) {
+		    // unreadable or old snapshot, compile properties
+		} finally {
+		    in.close();
+		}
+	    }
+	    this.schema = new Schema(prop);
+	    return this;
+	}
+
+	/**
+	 * @param icase true where character case should be ignored
+	 * @return this builder
+	 */
+	public Builder setIgnoreCase (boolean icase) {
+	    this.icase = icase;
+	    return this;
+	}
+
+	/**
+	 * @return new document structure
+	 * @throws IllegalStateException when no properties are given
+	 */
+	public PropertiesDocumentStructure build () {
+	    if (schema == null) {
+		throw new IllegalStateException("no properties");
+	    }
+	    return new PropertiesDocumentStructure(schema, icase, true);
+	}
+    }
+
+    /**
+     * Compiled properties.
+     */
+    private static final class Schema {
+	/** compiled tag hierarchy and attributes */
+	private final TagTable tagTable;
+	/** entity names */
+	private final String[] entityNames;
+	/** checksum of properties compiled */
+	private final long checksum;
+
+	/**
+	 * Compile properties.
+	 * @param prop properties to compile
+	 */
+	Schema (Properties prop) {
+	    checksum = checksum(prop);
+
+	    // collect tag names
+	    Set tagNames = new HashSet();
+	    {
+		tagNames.addAll(prop.keySet());
+		for (Iterator it = tagNames.iterator(); it.hasNext();) {
+		    String key = (String) it.next();
+		    if (key.startsWith("_")) {
+			it.remove();
+		    }
+		}
+	    }
+
+	    // create "master" map by resolving all includes
+	    Map master = new HashMap();
+	    Map resolved = new HashMap();
+	    for (Iterator it = tagNames.iterator(); it.hasNext();) {
+		String key = (String) it.next();
+		master.put(key, include(prop, key, resolved));
+	    }
+
+	    // collect entity names
+	    Set entities = new HashSet();
+	    {
+		entities.add("amp");
+		entities.add("gt");
+		entities.add("lt");
+
+		List l = (List) master.get("&");
+		if (l != null) {
+		    entities.addAll(l);
+		    master.remove("&");
+		    tagNames.remove("&");
+		}
+	    }
+	    entityNames = (String[]) entities.toArray(new String[entities.size()]);
+
+	    // create hierarchy map from master
+	    Map tagHierarchy = new HashMap();
+	    for (Iterator it = tagNames.iterator(); it.hasNext();) {
+		String key = (String) it.next();
+		List l = new Vector((List) master.get(key));
+		// remove attribute info
+		for (Iterator it0 = l.iterator(); it0.hasNext();) {
+		    String key0 = (String) it0.next();
+		    if (key0.startsWith("$")) {
+			it0.remove();
+		    }
+		}
+		tagHierarchy.put(key, l);
+	    }
+
+	    // create attribute map from master
+	    Map tagAttributes = new HashMap();
+	    for (Iterator it = tagNames.iterator(); it.hasNext();) {
+		String key = (String) it.next();
+		List in = (List) master.get(key);
+		List l = new Vector();
+		// copy attribute only info to list
+		for (Iterator it0 = in.iterator(); it0.hasNext();) {
+		    String key0 = (String) it0.next();
+		    if (key0.startsWith("$")) {
+			l.add(key0.substring(1));
+		    }
+		}
+		tagAttributes.put(key, l);
+	    }
+
+	    tagTable = new TagTable(tagHierarchy, tagAttributes);
+	}
+
+	/**
+	 * Read snapshot.
+	 * @param in stream to read from
+	 * @throws IOException when reading fails or stream does not
+	 * hold a snapshot
+	 */
+	Schema (InputStream in)
+	throws IOException {
+	    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+	    if (data.readInt() != MAGIC) {
+		throw new IOException("not a document structure snapshot");
+	    }
+	    int version = data.readInt();
+	    if (version != VERSION) {
+		throw new IOException("unsupported snapshot version: " + version);
+	    }
+	    checksum = data.readLong();
+	    tagTable = TagTable.read(data);
+	    entityNames = new String[data.readInt()];
+	    for (int i = 0; i < entityNames.length; i++) {
+		entityNames[i] = data.readUTF();
+	    }
+	}
+
+	/**
+	 * @param prop properties to read from
+	 * @param key to read
+	 * @param resolved map of lists already dereferenced
+	 * @return fully dereferenced list, not to be modified
+	 */
+	private static List include (Properties prop, String key, Map resolved) {
+	    List l = (List) resolved.get(key);
+	    if (l != null) {
+		return l;
+	    }
+	    l = new Vector();
+	    StringTokenizer st = new StringTokenizer(prop.getProperty(key));
+	    while (st.hasMoreTokens()) {
+		String v = st.nextToken();
+		if (v.startsWith("_")) {
+		    l.addAll(include(prop, v, resolved));
+		} else {
+		    l.add(v);
+		}
+	    }
+	    resolved.put(key, l);
+	    return l;
+	}
     }
 }
@@ -0,0 +1,417 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compiled tag hierarchy and attributes.  Every tag name gets a
+ * dense id, known tags first, followed by names only used as child
+ * like <tt>#TEXT</tt>.  Containment is a bit test in a matrix with a
+ * row for every parent id.  Attribute names get ids too, allowed
+ * attributes are a bit test in a matrix with a row for every tag id.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public final class TagTable {
+    /** name of document root pseudo tag */
+    public static final String ROOT = "@ROOT";
+    /** name of text pseudo tag */
+    public static final String TEXT = "#TEXT";
+
+    /** hash of names, slots hold id + 1 or 0 when free */
+    private final int[] ids;
+    /** names by id */
+    private final String[] names;
+    /** number of known tags */
+    private final int known;
+    /** containment matrix, bit <tt>parent * size + child</tt> */
+    private final BitSet matrix;
+    /** hash of attribute names, slots hold id + 1 or 0 when free */
+    private final int[] attributeIds;
+    /** attribute names by id */
+    private final String[] attributeNames;
+    /** attribute matrix, bit <tt>tag * attributes + attribute</tt> */
+    private final BitSet attributeMatrix;
+    /** id of document root or <tt>-1</tt> */
+    private final int root;
+    /** id of text or <tt>-1</tt> */
+    private final int text;
+
+    /**
+     * @param hierarchy map of known tag names to lists of names of
+     * tags they can contain
+     * @param attributes map of known tag names to lists of attribute
+     * names
+     */
+    public TagTable (Map hierarchy, Map attributes) {
+        this(names(hierarchy), hierarchy.size(), attributeNames(attributes));
+
+        for (int i = 0; i < known; i++) {
+            List l = (List) hierarchy.get(names[i]);
+            for (Iterator it = l.iterator(); it.hasNext();) {
+                matrix.set(i * names.length + getId((String) it.next()));
+            }
+        }
+        for (int i = 0; i < known; i++) {
+            List l = (List) attributes.get(names[i]);
+            for (Iterator it = l.iterator(); it.hasNext();) {
+                attributeMatrix.set(i * attributeNames.length
+                                    + getAttributeId((String) it.next()));
+            }
+        }
+    }
+
+    /**
+     * Create table with empty matrices.
+     * @param names tag names, known tags first
+     * @param known number of known tags
+     * @param attributeNames attribute names
+     */
+    private TagTable (String[] names, int known, String[] attributeNames) {
+        this.names = names;
+        this.known = known;
+        this.attributeNames = attributeNames;
+        ids = hash(names);
+        attributeIds = hash(attributeNames);
+        matrix = new BitSet(known * names.length);
+        attributeMatrix = new BitSet(known * attributeNames.length);
+
+        root = getId(ROOT);
+        text = getId(TEXT);
+    }
+
+    /**
+     * @param hierarchy map of known tag names to lists of names of
+     * tags they can contain
+     * @return known tag names in sorted order followed by other
+     * names in sorted order
+     */
+    private static String[] names (Map hierarchy) {
+        TreeSet extra = new TreeSet();
+        for (Iterator it = hierarchy.values().iterator(); it.hasNext();) {
+            extra.addAll((List) it.next());
+        }
+        extra.removeAll(hierarchy.keySet());
+
+        String[] names = new String[hierarchy.size() + extra.size()];
+        int id = 0;
+        for (Iterator it = new TreeSet(hierarchy.keySet()).iterator(); it.hasNext();) {
+            names[id++] = (String) it.next();
+        }
+        for (Iterator it = extra.iterator(); it.hasNext();) {
+            names[id++] = (String) it.next();
+        }
+        return names;
+    }
+
+    /**
+     * @param attributes map of known tag names to lists of attribute
+     * names
+     * @return attribute names in sorted order
+     */
+    private static String[] attributeNames (Map attributes) {
+        TreeSet attrs = new TreeSet();
+        for (Iterator it = attributes.values().iterator(); it.hasNext();) {
+            attrs.addAll((List) it.next());
+        }
+        return (String[]) attrs.toArray(new String[attrs.size()]);
+    }
+
+    /**
+     * @param names distinct names
+     * @return slots of hash table with ids of names
+     */
+    private static int[] hash (String[] names) {
+        int size = 2;
+        while (size < names.length * 2) {
+            size <<= 1;
+        }
+        int[] slots = new int[size];
+        for (int i = 0; i < names.length; i++) {
+            int j = slot(names[i], size - 1);
+            while (slots[j] != 0) {
+                j = (j + 1) & (size - 1);
+            }
+            slots[j] = i + 1;
+        }
+        return slots;
+    }
+
+    /**
+     * @param name name
+     * @param mask mask to map hash codes to slots
+     * @return first slot to probe for name
+     */
+    private static int slot (String name, int mask) {
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param slots slots of hash table
+     * @param names names by id
+     * @param name name to lookup
+     * @return id of name or <tt>-1</tt> when not in table
+     */
+    private static int lookup (int[] slots, String[] names, String name) {
+        int mask = slots.length - 1;
+        for (int j = slot(name, mask); slots[j] != 0; j = (j + 1) & mask) {
+            if (names[slots[j] - 1].equals(name)) {
+                return slots[j] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read table written by {@link #write(DataOutput)}.
+     * @param in input to read from
+     * @return table
+     * @throws IOException when reading fails
+     */
+    public static TagTable read (DataInput in)
+    throws IOException {
+        int known = in.readInt();
+        String[] names = readNames(in);
+        String[] attributeNames = readNames(in);
+        if (known < 0 || known > names.length) {
+            throw new IOException("bad number of known tags: " + known);
+        }
+        TagTable table = new TagTable(names, known, attributeNames);
+        readBits(in, table.matrix, known * names.length);
+        readBits(in, table.attributeMatrix, known * attributeNames.length);
+        return table;
+    }
+
+    /**
+     * Write names and matrices.
+     * @param out output to write to
+     * @throws IOException when writing fails
+     */
+    public void write (DataOutput out)
+    throws IOException {
+        out.writeInt(known);
+        writeNames(out, names);
+        writeNames(out, attributeNames);
+        writeBits(out, matrix, known * names.length);
+        writeBits(out, attributeMatrix, known * attributeNames.length);
+    }
+
+    /**
+     * @param in input to read from
+     * @return names
+     * @throws IOException when reading fails
+     */
+    private static String[] readNames (DataInput in)
+    throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("bad number of names: " + n);
+        }
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    /**
+     * @param out output to write to
+     * @param names names
+     * @throws IOException when writing fails
+     */
+    private static void writeNames (DataOutput out, String[] names)
+    throws IOException {
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeUTF(names[i]);
+        }
+    }
+
+    /**
+     * @param in input to read from
+     * @param bits bits to set
+     * @param size number of bits
+     * @throws IOException when reading fails
+     */
+    private static void readBits (DataInput in, BitSet bits, int size)
+    throws IOException {
+        byte[] b = new byte[(size + 7) / 8];
+        in.readFully(b);
+        for (int i = 0; i < size; i++) {
+            if ((b[i >> 3] & (1 << (i & 7))) != 0) {
+                bits.set(i);
+            }
+        }
+    }
+
+    /**
+     * @param out output to write to
+     * @param bits bits to write, eight to a byte
+     * @param size number of bits
+     * @throws IOException when writing fails
+     */
+    private static void writeBits (DataOutput out, BitSet bits, int size)
+    throws IOException {
+        byte[] b = new byte[(size + 7) / 8];
+        for (int i = bits.nextSetBit(0); i >= 0 && i < size; i = bits.nextSetBit(i + 1)) {
+            b[i >> 3] |= 1 << (i & 7);
+        }
+        out.write(b);
+    }
+
+    /**
+     * @param name tag name
+     * @return id of name or <tt>-1</tt> when not in hierarchy
+     */
+    public int getId (String name) {
+        return lookup(ids, names, name);
+    }
+
+    /**
+     * @param id tag id
+     * @return tag name
+     */
+    public String getName (int id) {
+        return names[id];
+    }
+
+    /**
+     * @return number of ids
+     */
+    public int size () {
+        return names.length;
+    }
+
+    /**
+     * @param name attribute name
+     * @return id of attribute or <tt>-1</tt> when no tag has it
+     */
+    public int getAttributeId (String name) {
+        return lookup(attributeIds, attributeNames, name);
+    }
+
+    /**
+     * @param id attribute id
+     * @return attribute name
+     */
+    public String getAttributeName (int id) {
+        return attributeNames[id];
+    }
+
+    /**
+     * @return number of attribute ids
+     */
+    public int getAttributeCount () {
+        return attributeNames.length;
+    }
+
+    /**
+     * @param id tag id
+     * @return true if id belongs to a known tag
+     */
+    public boolean isKnown (int id) {
+        return id >= 0 && id < known;
+    }
+
+    /**
+     * @return id of document root or <tt>-1</tt> when not in
+     * hierarchy
+     */
+    public int getRootId () {
+        return root;
+    }
+
+    /**
+     * @return id of text or <tt>-1</tt> when no tag can contain
+     * text
+     */
+    public int getTextId () {
+        return text;
+    }
+
+    /**
+     * @param parent parent tag id
+     * @param child child tag id
+     * @return true if parent can contain child
+     */
+    public boolean canContain (int parent, int child) {
+        return isKnown(parent) && child >= 0
+            && matrix.get(parent * names.length + child);
+    }
+
+    /**
+     * @param tag tag id
+     * @param attribute attribute id
+     * @return true if tag can have attribute
+     */
+    public boolean hasAttribute (int tag, int attribute) {
+        return isKnown(tag) && attribute >= 0
+            && attributeMatrix.get(tag * attributeNames.length + attribute);
+    }
+
+    /**
+     * @param id tag id
+     * @return names of attributes tag can have in sorted order
+     */
+    public List getAttributes (int id) {
+        List l = new ArrayList();
+        for (int i = 0; i < attributeNames.length; i++) {
+            if (hasAttribute(id, i)) {
+                l.add(attributeNames[i]);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * @return debug info
+     */
+    public String toString () {
+        Map attributes = new TreeMap();
+        Map hierarchy = new TreeMap();
+        for (int i = 0; i < known; i++) {
+            attributes.put(names[i], getAttributes(i));
+            List l = new ArrayList();
+            for (int j = 0; j < names.length; j++) {
+                if (canContain(i, j)) {
+                    l.add(names[j]);
+                }
+            }
+            hierarchy.put(names[i], l);
+        }
+        return "names=" + hierarchy.keySet() + "\n"
+                + "attributes=" + attributes + "\n"
+                + "hierarchy=" + hierarchy;
+    }
+}
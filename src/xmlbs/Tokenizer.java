@@ -22,35 +22,152 @@
 package xmlbs;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Vector;
 
 import xmlbs.tokens.CDATAToken;
+import xmlbs.tokens.CharSlice;
 import xmlbs.tokens.CommentToken;
+import xmlbs.tokens.TagCache;
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.TextToken;
 import xmlbs.tokens.Token;
 
 /**
  * The tokenizer class generates a list of XML Tokens from a stream
- * of characters.
+ * of characters.  Input is read in large blocks into a character
+ * buffer which is scanned by index, token data is copied out of
+ * this buffer in one go.
+ * <P>
+ * Input is read in a single forward pass.  When markup turns out to
+ * be invalid the characters read for it are taken as text, scanning
+ * continues at the first &lt; character among them.  Since comments
+ * and cdata sections without end marker make all following ones
+ * unterminated too, those are taken as text right away.</P>
+ * <P>
+ * The scanner keeps its state between blocks of input.  Besides
+ * reading from a stream or string the tokenizer can be fed chunks
+ * of data as they arrive, complete tokens are passed to a
+ * {@link Handler} right away.</P>
+ * <P>
+ * When constructed for a character array the array is shared with
+ * the tokens read, they hold {@link CharSlice}s of it instead of
+ * copies of their data.</P>
+ * <P>
+ * Input in an ASCII compatible encoding can be read as bytes, see
+ * {@link #Tokenizer(ByteBuffer, String, DocumentStructure)}.</P>
  *
  * @see xmlbs.Token
  * @author R.W. van ' t Veer
- * @version $Revision: 1.11 $
+ * @version $Revision: 1.13 $
  */
 public class Tokenizer {
     /** token we bumbed into before returning a text token */
     private Token holdBack = null;
-    /** stream we are reading from */
+    /** stream we are reading from, <TT>null</TT> when not reading from stream */
     private Reader in = null;
+    /** bytes read from channel or buffer read from in byte mode */
+    private ByteBuffer bytes = null;
+    /** channel we are reading from in byte mode, <TT>null</TT> when reading from buffer */
+    private ReadableByteChannel channel = null;
+    /** decoder for characters inspected in byte mode */
+    private ByteDecoder decoder = null;
+    /** handler for tokens in push mode */
+    private Handler handler = null;
     /** document structure */
     private DocumentStructure ds = null;
 
-    /** buffer size for stream rewind */
-    static final int BUFFER_SIZE = 64 * 1024;
+    /** end of comment marker */
+    private static final Terminator COMMENT_END = new Terminator("-->");
+    /** end of cdata section marker */
+    private static final Terminator CDATA_END = new Terminator("]]>");
+    /** cdata section start marker after &lt;![ */
+    private static final String CDATA_START = "CDATA[";
+
+    /** bit mask of characters below 64 to escape in text */
+    private static final long ESCAPED = 1L << '<' | 1L << '>' | 1L << '&'
+            | 1L << '"' | 1L << '\'';
+
+    /** initial buffer size */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    /** scanning text */
+    private static final int TEXT = 0;
+    /** read &lt; character */
+    private static final int MARKUP = 1;
+    /** scanning tag */
+    private static final int TAG = 2;
+    /** read &lt;! */
+    private static final int DECL = 3;
+    /** read &lt;!- */
+    private static final int COMMENT_START = 4;
+    /** read &lt;![ and part of cdata start marker */
+    private static final int CDATA_MARKER = 5;
+    /** scanning comment */
+    private static final int COMMENT = 6;
+    /** scanning cdata section */
+    private static final int CDATA = 7;
+
+    /** input buffer */
+    private char[] buf;
+    /** position of next character to scan */
+    private int pos = 0;
+    /** end of valid data in buffer */
+    private int end = 0;
+    /** start of token being read, data before it may be discarded */
+    private int start = 0;
+    /** position of &lt; character which started current markup */
+    private int markup = 0;
+    /**
+     * position of first &lt; character read while trying to read
+     * current markup, <TT>-1</TT> if none
+     */
+    private int resume = -1;
+    /** scanner state */
+    private int state = TEXT;
+    /**
+     * number of cdata start marker characters matched or state of
+     * end marker state machine
+     */
+    private int matched = 0;
+    /** true when a comment was found without end marker */
+    private boolean commentUnterminated = false;
+    /** true when a cdata section was found without end marker */
+    private boolean cdataUnterminated = false;
+    /** true when no more data can be read into the buffer */
+    private boolean eof = false;
+    /** position in buffer to stop reading at */
+    private int limit = Integer.MAX_VALUE;
+    /** true when tokens share the buffer */
+    private boolean shared = false;
+    /** true when text read since start needs escaping */
+    private boolean escaped = false;
+    /** cache of parsed tags, <TT>null</TT> when not caching */
+    private TagCache tagCache = null;
+    /** maximum number of characters between &lt; and &gt; of a tag */
+    private int maxTagLength = Integer.MAX_VALUE;
+    /** bytes in excess of characters read in current tag */
+    private int tagExcess = 0;
+    /**
+     * state of tag name recognition, {@link #NAME_READ},
+     * {@link #NAME_START} or {@link #NAME}
+     */
+    private int tagName = NAME_READ;
+
+    /** tag name read or not checked */
+    private static final int NAME_READ = 0;
+    /** expecting tag name after &lt;/ */
+    private static final int NAME_START = 1;
+    /** reading tag name */
+    private static final int NAME = 2;
 
     /**
      * Construct tokenizer reading from stream.
@@ -59,7 +176,8 @@ public class Tokenizer {
      */
     public Tokenizer (Reader in, DocumentStructure ds) {
         this.in = in;
-	this.ds = ds;
+        this.ds = ds;
+        this.buf = new char[BUFFER_SIZE];
     }
 
     /**
@@ -67,13 +185,155 @@ public class Tokenizer {
      * @param data string to read
      */
     public Tokenizer (String data, DocumentStructure ds) {
-        this.in = new StringReader(data);
-	this.ds = ds;
+        this.ds = ds;
+        this.buf = data.toCharArray();
+        this.end = buf.length;
+        this.eof = true;
+    }
+
+    /**
+     * Construct tokenizer reading bytes from stream.
+     * @param in input stream
+     * @param encoding ASCII compatible encoding of stream
+     * @param ds document structure
+     * @throws UnsupportedEncodingException when encoding is not
+     * supported or not ASCII compatible
+     * @see #Tokenizer(ByteBuffer, String, DocumentStructure)
+     */
+    public Tokenizer (InputStream in, String encoding, DocumentStructure ds)
+    throws UnsupportedEncodingException {
+        this(Channels.newChannel(in), encoding, ds);
+    }
+
+    /**
+     * Construct tokenizer reading bytes from channel.
+     * @param in input channel
+     * @param encoding ASCII compatible encoding of channel
+     * @param ds document structure
+     * @throws UnsupportedEncodingException when encoding is not
+     * supported or not ASCII compatible
+     * @see #Tokenizer(ByteBuffer, String, DocumentStructure)
+     */
+    public Tokenizer (ReadableByteChannel in, String encoding, DocumentStructure ds)
+    throws UnsupportedEncodingException {
+        this(ByteBuffer.allocate(BUFFER_SIZE), encoding, ds);
+        this.bytes.flip();
+        this.channel = in;
+    }
+
+    /**
+     * Construct tokenizer reading bytes from buffer, from its
+     * position up to its limit.  The bytes are not decoded, each
+     * byte is taken as an ISO-8859-1 character.  Since markup
+     * characters are single bytes in ASCII compatible encodings
+     * this is enough to recognize tokens, only the character
+     * following a &lt; is decoded to see if it starts a tag.  Token
+     * data holds the original bytes in the same way, writing it
+     * with ISO-8859-1 gives these bytes back.
+     * @param in input buffer
+     * @param encoding ASCII compatible encoding of buffer
+     * @param ds document structure
+     * @throws UnsupportedEncodingException when encoding is not
+     * supported or not ASCII compatible
+     */
+    public Tokenizer (ByteBuffer in, String encoding, DocumentStructure ds)
+    throws UnsupportedEncodingException {
+        this.decoder = ByteDecoder.forName(encoding);
+        this.bytes = in;
+        this.ds = ds;
+        this.buf = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Construct tokenizer reading from a character array.  The
+     * tokens read refer to ranges of the array, it must not be
+     * modified as long as they are in use.
+     * @param data array to read
+     * @param off offset of data in array
+     * @param len length of data
+     * @param ds document structure
+     */
+    public Tokenizer (char[] data, int off, int len, DocumentStructure ds) {
+        this.ds = ds;
+        this.buf = data;
+        this.pos = off;
+        this.start = off;
+        this.end = off + len;
+        this.eof = true;
+        this.shared = true;
     }
 
     /**
-     * Read next token from stream.
-     * @return next token
+     * Construct tokenizer reading part of a character array.  Reading
+     * stops when no token is being read at or after the given limit,
+     * text read up to the limit is not returned.  Tokens started
+     * before the limit are read to their end.
+     * @param data array to read
+     * @param off offset of data in array
+     * @param len length of data
+     * @param limit position in array to stop reading at
+     * @param ds document structure
+     * @see #getPosition()
+     * @see #getPendingText()
+     */
+    Tokenizer (char[] data, int off, int len, int limit, DocumentStructure ds) {
+        this(data, off, len, ds);
+        this.limit = limit;
+    }
+
+    /**
+     * Construct tokenizer for data pushed into it.
+     * @param handler receiver of tokens
+     * @param ds document structure
+     * @see #feed(char[], int, int)
+     * @see #end()
+     */
+    public Tokenizer (Handler handler, DocumentStructure ds) {
+        this.handler = handler;
+        this.ds = ds;
+        this.buf = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Feed a chunk of data.  All tokens completed by this chunk are
+     * passed to the handler before returning.
+     * @param cbuf data
+     * @param off offset of chunk in data
+     * @param len length of chunk
+     * @throws IllegalStateException when not constructed for pushing
+     * data or after end of data
+     */
+    public void feed (char[] cbuf, int off, int len)
+    throws IllegalStateException {
+        if (handler == null || eof) {
+            throw new IllegalStateException();
+        }
+        reserve(len);
+        System.arraycopy(cbuf, off, buf, end, len);
+        end += len;
+        drain();
+    }
+
+    /**
+     * Signal end of data.  The remaining tokens are passed to the
+     * handler.
+     * @throws IllegalStateException when not constructed for pushing
+     * data or after end of data
+     */
+    public void end ()
+    throws IllegalStateException {
+        if (handler == null || eof) {
+            throw new IllegalStateException();
+        }
+        eof = true;
+        drain();
+    }
+
+    /**
+     * Read next token from stream.  When data is pushed into this
+     * tokenizer <TT>null</TT> is returned when no complete token is
+     * available yet.
+     * @return next token or <TT>null</TT> at end of stream
      * @throws IOException we reading fails
      */
     public Token readToken ()
@@ -84,42 +344,13 @@ public class Tokenizer {
             return tok;
         }
 
-        StringBuffer sb = new StringBuffer();
-        for (int c; (c = in.read()) != -1;) {
-            if (c == '<') {
-                in.mark(BUFFER_SIZE);
-                c = in.read();
-                Token tok = null;
-
-                if (c == '/' || Character.isLetter((char) c)) { // tag?
-                    tok = readTagToken((char) c);
-                } else if (c == '?') { // special?
-                    tok = readSpecialToken();
-                } else if (c == '!') { // declaration?
-                    tok = readDeclToken();
-                }
-
-                // succeeded in reading a token?
-                if (tok != null) {
-                    String t = sb.toString();
-                    if (t.length() > 0) {
-                        // hold back token and return text token first
-                        holdBack = tok;
-                        return new TextToken(t, ds);
-                    }
-                    return tok;
-                }
-
-                // stray < character
-                sb.append('<');
-                in.reset();
-            } else {
-                sb.append((char) c);
+        for (;;) {
+            Token tok = scan();
+            if (tok != null || eof || handler != null) {
+                return tok;
             }
+            fill();
         }
-
-        String t = sb.toString();
-        return (t.length() > 0) ? new TextToken(t, ds) : null;
     }
 
     /**
@@ -138,104 +369,512 @@ public class Tokenizer {
     }
 
     /**
-     * Read a tag tokens from stream.
-     * @param firstChar already read character
-     * @return a tag token or <TT>null</TT> when no tag token found
-     * @throws IOException when reading from stream fails
+     * Set the maximum length of tags.  Markup which looks like a tag
+     * but has no &gt; within the given number of characters after
+     * the &lt; is read as text.  With a maximum set, markup with a
+     * tag name followed by something else than white space, / or
+     * &gt; is read as text too, like <TT>a&lt;b, c</TT>.  Tags are
+     * not limited or checked by default.
+     * @param maxTagLength maximum number of characters between
+     * &lt; and &gt;
      */
-    private Token readTagToken (char firstChar)
-    throws IOException {
-        StringBuffer sb = new StringBuffer();
-        sb.append(firstChar);
-        for (int c; (c = in.read()) != -1;) {
-            if (c == '<') {
-                // oeps this can't be a tag..
-                return null;
-            }
-            if (c == '>') {
-                // tag body read
-                break;
-            }
-            sb.append((char) c);
-        }
+    public void setMaxTagLength (int maxTagLength) {
+        this.maxTagLength = maxTagLength;
+    }
 
-        String raw = sb.toString();
-        return raw.length() > 0 ? new TagToken(raw, ds) : null;
+    /**
+     * Set cache to take repeated tags from.  The cache must be bound
+     * to the document structure of this tokenizer.
+     * @param tagCache cache of parsed tags, <TT>null</TT> for none
+     */
+    public void setTagCache (TagCache tagCache) {
+        this.tagCache = tagCache;
     }
 
     /**
-     * Read a special tokens from stream.
-     * @return a tag token or <TT>null</TT> when no special token found
-     * @throws IOException when reading from stream fails
+     * @return position in buffer reading stopped at
+     * @see #Tokenizer(char[], int, int, int, DocumentStructure)
      */
-    private Token readSpecialToken ()
-    throws IOException {
-        return null;
+    int getPosition () {
+        return pos;
     }
 
     /**
-     * Read a declaration tokens from stream.  Declaration tokens
-     * are all &lt;! tokens like comments and cdata blocks.
-     * @return a declaration token or <TT>null</TT> when no token found
-     * @throws IOException when reading from stream fails
+     * @return position in buffer of text read but not returned
+     * when reading stopped at limit, <TT>-1</TT> if none
+     * @see #Tokenizer(char[], int, int, int, DocumentStructure)
      */
-    private Token readDeclToken ()
-    throws IOException {
-        int c = in.read();
+    int getPendingText () {
+        return start < pos ? start : -1;
+    }
 
-        if (c == '-') { // comment?
-            c = in.read();
-            if (c != '-') {
-                return null;
-            }
+    /**
+     * Iterate over tokens from stream.  Tokens are read when
+     * requested, an <TT>IOException</TT> while reading is thrown
+     * wrapped in an {@link IteratorException}.
+     * @return iterator over the tokens still to be read
+     */
+    public Iterator iterator () {
+        return new Iterator() {
+            /** next token, <TT>null</TT> when not yet read */
+            private Token next = null;
 
-            // try to find end of comment marker "-->"
-            StringBuffer sb = new StringBuffer();
-            while ((c = in.read()) != -1) {
-                sb.append((char) c);
+            public boolean hasNext () {
+                if (next == null) {
+                    try {
+                        next = readToken();
+                    } catch (IOException ex) {
+                        throw new IteratorException(ex);
+                    }
+                }
+                return next != null;
+            }
 
-                if (c == '>' && sb.toString().endsWith("-->")) {
-                    break;
+            public Object next () {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                Token tok = next;
+                next = null;
+                return tok;
+            }
+
+            public void remove () {
+                throw new UnsupportedOperationException();
             }
+        };
+    }
 
-            // unterminated comment != comment
-            if (c == -1) {
-                return null;
+    /**
+     * Pass all available tokens to handler.
+     */
+    private void drain () {
+        for (Token tok; (tok = scan()) != null;) {
+            handler.token(tok);
+            if (holdBack != null) {
+                tok = holdBack;
+                holdBack = null;
+                handler.token(tok);
             }
+        }
+    }
 
-            String t = sb.toString();
-            return new CommentToken(t.substring(0, t.length() - 3));
-        } else if (c == '[') { // cdata section?
-            // match CDATA[
-            StringBuffer sb = new StringBuffer();
-            for (int i = "CDATA[".length();
-                    i > 0 && (c = in.read()) != -1; i--) {
-                sb.append((char) c);
-                if (!"CDATA[".startsWith(sb.toString())) {
+    /**
+     * Scan buffered data for next token.
+     * @return next token or <TT>null</TT> when more data is needed
+     * or at end of data
+     */
+    private Token scan () {
+        for (;;) {
+            if (state == TEXT) {
+                // skip to next < character, note characters to escape
+                int p = pos;
+                int stop = end < limit ? end : limit;
+                for (; p < stop; p++) {
+                    char c = buf[p];
+                    if (c < 64 && ((ESCAPED >>> c) & 1) != 0) {
+                        if (c == '<') {
+                            break;
+                        }
+                        escaped = true;
+                    }
+                }
+                pos = p;
+                if (p >= stop) {
+                    if (eof && stop == end && pos > start) {
+                        Token tok = new TextToken(text(start, pos), ds, !escaped);
+                        start = pos;
+                        escaped = false;
+                        return tok;
+                    }
                     return null;
                 }
+
+                markup = p;
+                resume = -1;
+                pos = p + 1;
+                state = MARKUP;
+            } else if (state == TAG) {
+                int p = pos;
+                while (p < end) {
+                    char c = buf[p];
+                    if (c == '<') {
+                        // oeps this can't be a tag..
+                        pos = p;
+                        resume = p;
+                        break;
+                    }
+                    if (c == '>') {
+                        // tag body read
+                        pos = p + 1;
+                        return markup(tag(markup + 1, p));
+                    }
+                    if (decoder != null) {
+                        tagExcess += decoder.excess(c);
+                    }
+                    if (p - markup - tagExcess > maxTagLength) {
+                        // too long for a tag
+                        pos = p;
+                        break;
+                    }
+                    if (tagName != NAME_READ) {
+                        if (isNameChar(c)
+                                && (tagName == NAME || !isDigit(c))) {
+                            tagName = NAME;
+                        } else if (tagName == NAME && c > ' ' && c != '/') {
+                            // can't follow a tag name, stray < character
+                            pos = p;
+                            break;
+                        } else {
+                            tagName = NAME_READ;
+                        }
+                    }
+                    p++;
+                }
+                if (p == end) {
+                    pos = p;
+                    if (!eof) {
+                        return null;
+                    }
+                    return markup(tag(markup + 1, pos));
+                }
+                fail();
+            } else if (state == COMMENT || state == CDATA) {
+                Terminator term = state == COMMENT ? COMMENT_END : CDATA_END;
+                int p = pos;
+                int m = matched;
+                while (p < end && !term.isMatch(m)) {
+                    char c = buf[p++];
+                    if (c == '<' && resume == -1) {
+                        resume = p - 1;
+                    }
+                    m = term.next(m, c);
+                }
+                pos = p;
+                matched = m;
+                if (term.isMatch(m)) {
+                    if (state == COMMENT) {
+                        return markup(new CommentToken(text(markup + 4, pos - 3)));
+                    }
+                    return markup(new CDATAToken(text(markup + 9, pos - 3)));
+                }
+                if (!eof) {
+                    return null;
+                }
+
+                // unterminated comment != comment, and so are all
+                // following comments and unterminated cdata section
+                // != cdata section
+                if (state == COMMENT) {
+                    commentUnterminated = true;
+                } else {
+                    cdataUnterminated = true;
+                }
+                fail();
+            } else {
+                if (pos == end && !eof) {
+                    return null;
+                }
+                if (state == MARKUP && decoder != null && pos < end
+                        && buf[pos] >= 0x80
+                        && pos + decoder.length(buf[pos]) > end && !eof) {
+                    // need complete character to see if it's a letter
+                    return null;
+                }
+                int c = -1;
+                if (pos < end) {
+                    c = buf[pos++];
+                    if (c == '<' && resume == -1) {
+                        resume = pos - 1;
+                    }
+                }
+
+                if (state == MARKUP) {
+                    if (c == '/' || isLetter(c)) { // tag?
+                        state = TAG;
+                        // tag names are only checked with a maximum
+                        tagName = maxTagLength == Integer.MAX_VALUE
+                                ? NAME_READ : c == '/' ? NAME_START : NAME;
+                        tagExcess = decoder != null ? decoder.excess(c) : 0;
+                    } else if (c == '!') { // declaration?
+                        state = DECL;
+                    } else { // special or stray < character
+                        fail();
+                    }
+                } else if (state == DECL) {
+                    if (c == '-') { // comment?
+                        state = COMMENT_START;
+                    } else if (c == '[') { // cdata section?
+                        state = CDATA_MARKER;
+                        matched = 0;
+                    } else {
+                        fail();
+                    }
+                } else if (state == COMMENT_START) {
+                    if (c == '-' && !commentUnterminated) {
+                        state = COMMENT;
+                        matched = 0;
+                    } else {
+                        fail();
+                    }
+                } else if (state == CDATA_MARKER) {
+                    if (c == CDATA_START.charAt(matched)) {
+                        if (++matched == CDATA_START.length()) {
+                            if (cdataUnterminated) {
+                                fail();
+                            } else {
+                                state = CDATA;
+                                matched = 0;
+                            }
+                        }
+                    } else {
+                        fail();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param c character
+     * @return true when character may be part of a tag name, non
+     * ASCII characters are not inspected
+     */
+    private static boolean isNameChar (char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || isDigit(c) || c == '.' || c == '_' || c == ':'
+                || c == '-' || c >= 0x80;
+    }
+
+    /**
+     * @param c character
+     * @return true when character is an ASCII digit
+     */
+    private static boolean isDigit (char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @param c character just read
+     * @return true when character is a letter
+     */
+    private boolean isLetter (int c) {
+        if (decoder != null && c >= 0x80) {
+            return Character.isLetter(decoder.decode(buf, pos - 1, end));
+        }
+        return Character.isLetter((char) c);
+    }
+
+    /**
+     * Finish reading markup.
+     * @param tok token read
+     * @return text token read before given token or given token
+     */
+    private Token markup (Token tok) {
+        state = TEXT;
+        if (markup > start) {
+            // hold back token and return text token first
+            holdBack = tok;
+            tok = new TextToken(text(start, markup), ds, !escaped);
+        }
+        start = pos;
+        escaped = false;
+        return tok;
+    }
+
+    /**
+     * @param from start offset of tag text in buffer
+     * @param to end offset of tag text in buffer
+     * @return tag from cache or parsed
+     */
+    private TagToken tag (int from, int to) {
+        if (tagCache != null) {
+            return tagCache.getTag(buf, from, to - from);
+        }
+        return new TagToken(text(from, to), ds);
+    }
+
+    /**
+     * Give up reading markup.  The characters read for it are text,
+     * continue with the first &lt; character among them if any.
+     */
+    private void fail () {
+        state = TEXT;
+        // text includes the < character
+        escaped = true;
+        if (resume != -1) {
+            pos = resume;
+        }
+    }
+
+    /**
+     * @param from start offset in buffer
+     * @param to end offset in buffer
+     * @return string or slice for given buffer range
+     */
+    private CharSequence text (int from, int to) {
+        if (shared) {
+            return new CharSlice(buf, from, to - from);
+        }
+        return new String(buf, from, to - from);
+    }
+
+    /**
+     * Read a block of data into buffer.
+     * @return <TT>false</TT> when end of stream reached
+     * @throws IOException when reading from stream fails
+     */
+    private boolean fill ()
+    throws IOException {
+        reserve(1);
+        int n = in != null ? in.read(buf, end, buf.length - end) : readBytes();
+        if (n == -1) {
+            eof = true;
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /**
+     * Read a block of bytes into buffer as ISO-8859-1 characters.
+     * @return number of bytes read or <TT>-1</TT> at end of stream
+     * @throws IOException when reading from channel fails
+     */
+    private int readBytes ()
+    throws IOException {
+        while (!bytes.hasRemaining()) {
+            if (channel == null) {
+                return -1;
+            }
+            bytes.clear();
+            int n = channel.read(bytes);
+            bytes.flip();
+            if (n == -1) {
+                return -1;
             }
+        }
 
-            // read data until ]]>
-            sb = new StringBuffer();
-            while ((c = in.read()) != -1) {
-                sb.append((char) c);
+        int n = Math.min(bytes.remaining(), buf.length - end);
+        for (int i = end, l = end + n; i < l; i++) {
+            buf[i] = (char) (bytes.get() & 0xff);
+        }
+        return n;
+    }
 
-                if (c == '>' && sb.toString().endsWith("]]>")) {
-                    break;
+    /**
+     * Make room for data at the end of the buffer.  Data before the
+     * start of the token being read is discarded, the buffer is
+     * enlarged when the current token already fills most of it.
+     * @param len number of characters to make room for
+     */
+    private void reserve (int len) {
+        if (end + len <= buf.length) {
+            return;
+        }
+
+        int keep = end - start;
+        int size = buf.length;
+        while (keep + len > size / 2) {
+            size *= 2;
+        }
+        char[] dst = size != buf.length ? new char[size] : buf;
+        System.arraycopy(buf, start, dst, 0, keep);
+        buf = dst;
+        pos -= start;
+        markup -= start;
+        if (resume != -1) {
+            resume -= start;
+        }
+        end = keep;
+        start = 0;
+    }
+
+    /**
+     * Receiver of tokens from a tokenizer data is pushed into.
+     * @see Tokenizer#Tokenizer(Handler, DocumentStructure)
+     */
+    public static interface Handler {
+        /**
+         * @param tok token read
+         */
+        void token (Token tok);
+    }
+
+    /**
+     * Small state machine to find the end marker of comments, cdata
+     * sections and alike in a single pass.  The state is the length
+     * of the longest marker prefix matching the characters seen so
+     * far, on a mismatch it falls back to the longest prefix which
+     * is also a suffix of the current match like the Knuth, Morris
+     * and Pratt algorithm.
+     */
+    private static final class Terminator {
+        /** marker to find */
+        private final char[] term;
+        /** fallback state for a mismatch after given state */
+        private final int[] fallback;
+
+        /**
+         * @param term marker to find
+         */
+        Terminator (String term) {
+            this.term = term.toCharArray();
+            this.fallback = new int[this.term.length];
+            for (int state = 2, k = 0; state < this.term.length; state++) {
+                char c = this.term[state - 1];
+                while (k > 0 && c != this.term[k]) {
+                    k = fallback[k];
+                }
+                if (c == this.term[k]) {
+                    k++;
                 }
+                fallback[state] = k;
             }
+        }
 
-            // unterminated cdata section != cdata section
-            if (c == -1) {
-                return null;
+        /**
+         * @param state current state, never a complete match
+         * @param c next character
+         * @return next state
+         */
+        int next (int state, char c) {
+            while (state > 0 && c != term[state]) {
+                state = fallback[state];
             }
+            return c == term[state] ? state + 1 : 0;
+        }
+
+        /**
+         * @param state current state
+         * @return true when the complete marker has been seen
+         */
+        boolean isMatch (int state) {
+            return state == term.length;
+        }
+    }
+
+    /**
+     * Exception thrown by token iterator when reading from stream
+     * fails.
+     * @see Tokenizer#iterator()
+     */
+    public static class IteratorException extends RuntimeException {
+        /** serialization version */
+        private static final long serialVersionUID = 1L;
 
-            String t = sb.toString();
-            return new CDATAToken(t.substring(0, t.length() - 3));
+        /**
+         * @param cause exception thrown while reading
+         */
+        public IteratorException (IOException cause) {
+            super(cause);
         }
 
-        return null;
+        /**
+         * @return exception thrown while reading
+         */
+        public IOException getIOException () {
+            return (IOException) getCause();
+        }
     }
 }
@@ -26,6 +26,7 @@ import java.util.List;
 
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.Token;
+import xmlbs.tokens.TokenStore;
 
 /**
  * Build a hierarchy from a list of tokens.  The tokens will be wrapped by tree
@@ -47,9 +48,18 @@ public class TreeBuilder {
      * @return the root node for the result tree
      */
     public static TreeNode build (List tokens) {
+        return build(tokens.iterator());
+    }
+
+    /**
+     * Construct a tree for tokens as they are read.
+     * @param tokens iterator to read from
+     * @return the root node for the result tree
+     */
+    public static TreeNode build (Iterator tokens) {
         TreeNode root = new TreeNode();
         TreeNode current = root;
-        for (Iterator it = tokens.iterator(); it.hasNext();) {
+        for (Iterator it = tokens; it.hasNext();) {
             Token tok = (Token) it.next();
             
             if (tok instanceof TagToken) {
@@ -134,4 +144,41 @@ public class TreeBuilder {
             result.add(p);
         }
     }
+
+    /**
+     * Flatten a tree to a token store.
+     * @param root root node of tree
+     * @param result store to write result to
+     */
+    public static TokenStore flatten (TreeNode root, TokenStore result) {
+        for (Iterator it = root.getChildren().iterator(); it.hasNext();) {
+            flatten_((TreeNode) it.next(), result);
+        }
+        return result;
+    }
+    private static void flatten_ (TreeNode root, TokenStore result) {
+        Object p = root.getPayload();
+        if (p instanceof TagToken) {
+            TagToken tag = (TagToken) p;
+            if (tag.isOpenTag()) {
+                List children = root.getChildren();
+                if (children.size() == 0) {
+                    // written as empty tag, see TokenStore.toString(int)
+                    result.add(TokenStore.EMPTY_TAG, tag);
+                } else {
+                    result.add(TokenStore.OPEN_TAG, tag);
+                    for (Iterator it = children.iterator(); it.hasNext();) {
+                        TreeNode node = (TreeNode) it.next();
+                        flatten_(node, result);
+                    }
+                    // only the name is kept for close tags
+                    result.add(TokenStore.CLOSE_TAG, tag);
+                }
+            } else if (!tag.isCloseTag()) {
+                result.add(TokenStore.EMPTY_TAG, tag);
+            }
+        } else if (p != null) {
+            result.add((Token) p);
+        }
+    }
 }
@@ -24,7 +24,8 @@ package xmlbs;
 import gnu.getopt.Getopt;
 
 import java.io.FileInputStream;
-import java.util.Properties;
+
+import xmlbs.tokens.TagCache;
 
 /**
  * Commandline tool to help translate html4 to xhtml.
@@ -42,19 +43,27 @@ public class XHTMLizer {
     throws Exception {
 	boolean annotate = false;
 	boolean icase = false;
+	String encoding = null;
+	int maxTagLength = -1;
 	int argn = 0;
 	{
 	    String progname = XHTMLizer.class.getName();
-	    Getopt opt = new Getopt(progname, args, "ai");
+	    Getopt opt = new Getopt(progname, args, "ae:im:");
 	    int c;
 	    while ((c = opt.getopt()) != -1) {
 		switch (c) {
 		    case 'a':
 			annotate = true;
 			break;
+		    case 'e':
+			encoding = opt.getOptarg();
+			break;
 		    case 'i':
 			icase = true;
 			break;
+		    case 'm':
+			maxTagLength = Integer.parseInt(opt.getOptarg());
+			break;
 		    default:
 		    case '?':
 			usage(progname);
@@ -70,19 +79,25 @@ public class XHTMLizer {
 	    }
 	}
 
-	// prepare document structure
-	Properties prop = new Properties();
-	prop.load(ClassLoader.getSystemResourceAsStream("xmlbs/HTML.properties"));
-	DocumentStructure ds = new PropertiesDocumentStructure(prop);
-	ds.setIgnoreCase(icase);
+	// prepare document structure, from snapshot when up to date
+	DocumentStructure ds = new PropertiesDocumentStructure.Builder()
+	    .load("xmlbs/html.properties", "xmlbs/html.schema")
+	    .setIgnoreCase(icase).build();
 
-	XMLBS bs = new XMLBS(new FileInputStream(args[argn]), ds);
+	// files in ASCII compatible encodings are mapped into memory
+	FileInputStream in = new FileInputStream(args[argn]);
+	XMLBS bs = new XMLBS(in.getChannel(), ds, encoding);
 	bs.setAnnotate(annotate);
+	bs.setTagCache(new TagCache(ds));
+	if (maxTagLength != -1) {
+	    bs.setMaxTagLength(maxTagLength);
+	}
 	bs.process();
 	bs.write(System.out);
+	in.close();
     }
 
     public static void usage (String progname) {
-	System.err.println("java "+progname+" [-ai] FILE");
+	System.err.println("java "+progname+" [-ai] [-e ENCODING] [-m MAXTAGLENGTH] FILE");
     }
 }
@@ -21,21 +21,29 @@
 
 package xmlbs;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.Iterator;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.NoSuchElementException;
 
 import xmlbs.tokens.CommentToken;
+import xmlbs.tokens.TagCache;
 import xmlbs.tokens.TagToken;
-import xmlbs.tokens.TextToken;
 import xmlbs.tokens.Token;
+import xmlbs.tokens.TokenStore;
 
 /**
  * XML body shop tries to correct broken XML files. XMLBS is able to fix to
@@ -58,6 +66,9 @@ public class XMLBS {
     /** input */
     private String inStr = null;
 
+    /** input */
+    private FileChannel inChannel = null;
+
     /** document structure */
     private DocumentStructure ds = null;
 
@@ -67,8 +78,17 @@ public class XMLBS {
     /** Charset encoding of InputStream */
     private String encoding = null;
 
+    /** cache of parsed tags, <TT>null</TT> when not caching */
+    private TagCache tagCache = null;
+
+    /** maximum length of tags */
+    private int maxTagLength = Integer.MAX_VALUE;
+
+    /** true when input is processed as bytes */
+    private boolean bytes = false;
+
     /** token list */
-    private List tokens = null;
+    private TokenStore tokens = null;
 
     /** marker used for annotation */
     private static final String WARNING_MARKER = "XMLBS!";
@@ -109,6 +129,27 @@ public class XMLBS {
         this.encoding = encoding;
     }
 
+    /**
+     * Construct a body shop instances for file with structure descriptor. The
+     * file is read from the current position of the channel. When encoding is
+     * ASCII compatible the file is mapped into memory and processed as bytes.
+     * 
+     * @param in
+     *            file channel
+     * @param ds
+     *            document structure descriptor
+     * @param encoding
+     *            Charset encoding
+     * @throws IOException
+     *             when reading from file failed
+     */
+    public XMLBS(FileChannel in, DocumentStructure ds, String encoding)
+            throws IOException {
+        this.inChannel = in;
+        this.ds = ds;
+        this.encoding = encoding;
+    }
+
     /**
      * Construct a body shop instances for stream with structure descriptor.
      * 
@@ -131,14 +172,10 @@ public class XMLBS {
      *             when reading from stream failed
      */
     public void process() throws IOException {
-        // read tokens from stream
-        tokenize();
-
-        // remove unknown tags and unknown tag attributes
-        cleanupTags();
-
-        // reconstruct hierarchy
-        hierarchy();
+        // read tokens from stream, remove unknown tags and reconstruct
+        // hierarchy while reading, unknown tag attributes are removed
+        // when flattening
+        hierarchy(cleanupTags(tokenize()));
 
         // merge adjoined text tokens
         mergeAdjoinedText();
@@ -158,17 +195,59 @@ public class XMLBS {
      */
     public void write(OutputStream out) throws IOException,
             IllegalStateException {
+        Writer writer;
+        if (bytes) {
+            // characters are the original bytes
+            writer = new OutputStreamWriter(out, "ISO-8859-1");
+        } else if (encoding != null) {
+            writer = new OutputStreamWriter(out, encoding);
+        } else {
+            writer = new OutputStreamWriter(out);
+        }
+        writeTokens(new BufferedWriter(writer));
+    }
+
+    /**
+     * Write result data to writer. Tokens are escaped while written, input
+     * processed as bytes is decoded using its encoding.
+     * 
+     * @param out
+     *            writer
+     * @throws IOException
+     *             when writing fails
+     * @throws IllegalStateException
+     *             when data not yet <a href="#process()">processed </a>.
+     */
+    public void write(Writer out) throws IOException, IllegalStateException {
+        if (bytes) {
+            // characters are the original bytes
+            Writer writer = new OutputStreamWriter(new DecodingOutputStream(
+                    out, encoding), "ISO-8859-1");
+            writeTokens(writer);
+            writer.close();
+        } else {
+            writeTokens(out);
+        }
+    }
+
+    /**
+     * Write tokens to writer.
+     * 
+     * @param out
+     *            writer
+     * @throws IOException
+     *             when writing fails
+     * @throws IllegalStateException
+     *             when data not yet <a href="#process()">processed </a>.
+     */
+    private void writeTokens(Writer out) throws IOException,
+            IllegalStateException {
         if (!processed) {
             throw new IllegalStateException();
         }
 
-        for (Iterator it = tokens.iterator(); it.hasNext();) {
-            Token tok = (Token) it.next();
-            if (encoding != null) {
-                out.write(tok.toString().getBytes(encoding));
-            } else {
-                out.write(tok.toString().getBytes());
-            }
+        for (int i = 0, n = tokens.size(); i < n; i++) {
+            tokens.write(i, out);
         }
         out.flush();
     }
@@ -188,6 +267,49 @@ public class XMLBS {
         annotate = flag;
     }
 
+    /**
+     * @return cache of parsed tags or <TT>null</TT>
+     */
+    public TagCache getTagCache() {
+        return tagCache;
+    }
+
+    /**
+     * Set cache to take repeated tags from. The cache can be shared by
+     * processors with the same document structure which do not run at the
+     * same time.
+     * 
+     * @param tagCache
+     *            cache of parsed tags, <TT>null</TT> for none
+     * @throws IllegalArgumentException
+     *             when cache is bound to an other document structure
+     */
+    public void setTagCache(TagCache tagCache) {
+        if (tagCache != null && tagCache.getDocumentStructure() != ds) {
+            throw new IllegalArgumentException();
+        }
+        this.tagCache = tagCache;
+    }
+
+    /**
+     * @return maximum number of characters between &lt; and &gt; of a tag
+     */
+    public int getMaxTagLength() {
+        return maxTagLength;
+    }
+
+    /**
+     * Longer markup is not recognized as tag but read as text.
+     * 
+     * @param maxTagLength
+     *            maximum number of characters between &lt; and &gt; of a
+     *            tag
+     * @see Tokenizer#setMaxTagLength(int)
+     */
+    public void setMaxTagLength(int maxTagLength) {
+        this.maxTagLength = maxTagLength;
+    }
+
     /**
      * @return String
      */
@@ -207,74 +329,95 @@ public class XMLBS {
 
     // private stuff
     /**
-     * Tokenize input stream.
+     * Tokenize input stream. A stream in an ASCII compatible encoding is
+     * processed as bytes, only bytes which need inspection are decoded.
      * 
+     * @return iterator reading tokens from input
      * @throws IOException
-     *             when reading from stream failed
+     *             when encoding is not supported
      */
-    private void tokenize() throws IOException {
+    private Iterator tokenize() throws IOException {
         Tokenizer tok = null;
 
-        if (in != null) {
+        bytes = (in != null || inChannel != null) && encoding != null
+                && ByteDecoder.isSupported(encoding);
+        if (bytes && inChannel != null) {
+            long size = inChannel.size() - inChannel.position();
+            if (size <= Integer.MAX_VALUE) {
+                // let the OS page in the file instead of copying it
+                ByteBuffer map = inChannel.map(FileChannel.MapMode.READ_ONLY,
+                        inChannel.position(), size);
+                inChannel.position(inChannel.position() + size);
+                tok = new Tokenizer(map, encoding, ds);
+            } else {
+                tok = new Tokenizer(inChannel, encoding, ds);
+            }
+        } else if (bytes) {
+            tok = new Tokenizer(in, encoding, ds);
+        } else if (in != null || inChannel != null) {
+            InputStream stream = in != null ? in : Channels
+                    .newInputStream(inChannel);
             Reader reader = null;
             if (encoding != null) {
-                reader = new BufferedReader(new InputStreamReader(in, encoding));
+                reader = new InputStreamReader(stream, encoding);
             } else {
-                reader = new BufferedReader(new InputStreamReader(in));
+                reader = new InputStreamReader(stream);
             }
             tok = new Tokenizer(reader, ds);
         } else {
-            tok = new Tokenizer(inStr, ds);
+            // tokens share the characters of the input string
+            char[] data = inStr.toCharArray();
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (threads > 1
+                    && data.length >= 2 * ParallelTokenizer.CHUNK_SIZE) {
+                ParallelTokenizer ptok = new ParallelTokenizer(data, 0,
+                        data.length, ds);
+                ptok.setMaxTagLength(maxTagLength);
+                ptok.setTagCache(tagCache);
+                return ptok.readAllTokens(threads).iterator();
+            }
+            tok = new Tokenizer(data, 0, data.length, ds);
         }
-        tokens = tok.readAllTokens();
+        tok.setMaxTagLength(maxTagLength);
+        tok.setTagCache(tagCache);
+        return tok.iterator();
     }
 
     /**
-     * Remove unknown tags and unknown tag attributes.
+     * Remove unknown tags.
+     * 
+     * @param tokens
+     *            tokens to cleanup
+     * @return iterator over cleaned up tokens
      */
-    private void cleanupTags() {
-        for (ListIterator it = tokens.listIterator(); it.hasNext();) {
-            Token tok = (Token) it.next();
-            if (tok instanceof TagToken) {
-                TagToken tag = (TagToken) tok;
-                if (!ds.isKnownTag(tag)) {
-                    if (annotate) {
-                        it.set(comment("unknow tag", tag));
-                    } else {
-                        it.remove();
-                    }
-                } else {
-                    ds.retainKnownAttributes(tag);
-                }
-            }
-        }
+    private Iterator cleanupTags(Iterator tokens) {
+        return new CleanupIterator(tokens);
     }
 
     /**
      * Verify and restructure tag hierarchy.
+     * 
+     * @param tokens
+     *            tokens to build hierarchy from
+     * @throws IOException
+     *             when reading from stream failed
      */
-    private void hierarchy() {
-        TreeNode root = TreeBuilder.build(tokens);
+    private void hierarchy(Iterator tokens) throws IOException {
+        TreeNode root;
+        try {
+            root = TreeBuilder.build(tokens);
+        } catch (Tokenizer.IteratorException ex) {
+            throw ex.getIOException();
+        }
         TreeBalancer.balance(root, ds);
-        tokens = TreeBuilder.flatten(root, new ArrayList());
+        this.tokens = TreeBuilder.flatten(root, new TokenStore(ds));
     }
 
     /**
      * Merge adjoined text blocks.
      */
     private void mergeAdjoinedText() {
-        Token last = null;
-        for (Iterator it = tokens.iterator(); it.hasNext();) {
-            Token tok = (Token) it.next();
-            if (tok instanceof TextToken && last instanceof TextToken) {
-                it.remove();
-                TextToken txt = (TextToken) tok;
-                TextToken ltxt = (TextToken) last;
-                ltxt.setData(ltxt.getData() + " " + txt.getData());
-            } else {
-                last = tok;
-            }
-        }
+        tokens.mergeText();
     }
 
     /**
@@ -289,4 +432,148 @@ public class XMLBS {
     private static CommentToken comment(String msg, Token tok) {
         return new CommentToken(WARNING_MARKER + "(" + msg + ")" + tok);
     }
-}
\ No newline at end of file
+
+    /**
+     * Iterator removing unknown tags from tokens as they are read.
+     * Unknown tags are replaced by a comment when annotating, unknown
+     * tag attributes are left to the token store.
+     */
+    private class CleanupIterator implements Iterator {
+        /** tokens to cleanup */
+        private Iterator tokens;
+
+        /** next token, <TT>null</TT> when not yet read */
+        private Token next = null;
+
+        /**
+         * @param tokens
+         *            tokens to cleanup
+         */
+        public CleanupIterator(Iterator tokens) {
+            this.tokens = tokens;
+        }
+
+        public boolean hasNext() {
+            while (next == null && tokens.hasNext()) {
+                Token tok = (Token) tokens.next();
+                if (tok instanceof TagToken) {
+                    TagToken tag = (TagToken) tok;
+                    if (!ds.isKnownTag(tag)) {
+                        if (annotate) {
+                            next = comment("unknow tag", tag);
+                        }
+                    } else {
+                        // unknown attributes are dropped by the token
+                        // store when the tree is flattened
+                        next = tag;
+                    }
+                } else {
+                    next = tok;
+                }
+            }
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Token tok = next;
+            next = null;
+            return tok;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Stream decoding bytes to a writer. Closing the stream does not close
+     * the writer.
+     */
+    private static class DecodingOutputStream extends OutputStream {
+        /** writer to write decoded characters to */
+        private Writer out;
+
+        /** decoder */
+        private CharsetDecoder decoder;
+
+        /** bytes not decoded yet */
+        private ByteBuffer in = ByteBuffer.allocate(8192);
+
+        /** decoded characters */
+        private CharBuffer chars = CharBuffer.allocate(8192);
+
+        /**
+         * @param out
+         *            writer to write decoded characters to
+         * @param encoding
+         *            Charset encoding of bytes
+         */
+        public DecodingOutputStream(Writer out, String encoding) {
+            this.out = out;
+            this.decoder = Charset.forName(encoding).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, in.remaining());
+                in.put(b, off, n);
+                off += n;
+                len -= n;
+                decode(false);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            decode(true);
+            while (decoder.flush(chars).isOverflow()) {
+                writeChars();
+            }
+            writeChars();
+            out.flush();
+        }
+
+        /**
+         * Decode buffered bytes, leaving incomplete characters in buffer
+         * unless at end of input.
+         * 
+         * @param end
+         *            true at end of input
+         * @throws IOException
+         *             when writing fails
+         */
+        private void decode(boolean end) throws IOException {
+            in.flip();
+            while (decoder.decode(in, chars, end).isOverflow()) {
+                writeChars();
+            }
+            writeChars();
+            in.compact();
+        }
+
+        /**
+         * Write decoded characters.
+         * 
+         * @throws IOException
+         *             when writing fails
+         */
+        private void writeChars() throws IOException {
+            chars.flip();
+            out.write(chars.array(), chars.arrayOffset() + chars.position(),
+                    chars.remaining());
+            chars.clear();
+        }
+    }
+}
@@ -42,6 +42,9 @@ public class AllTests extends TestCase {
         suite.addTestSuite(TreeNodeTest.class);
         suite.addTestSuite(TreeBuilderTest.class);
         suite.addTestSuite(TreeBalancerTest.class);
+        suite.addTestSuite(AttributesTest.class);
+        suite.addTestSuite(DocumentStructureTest.class);
+        suite.addTestSuite(XMLBSTest.class);
         return suite;
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs.testing;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import xmlbs.DocumentStructure;
+import xmlbs.PropertiesDocumentStructure;
+import xmlbs.tokens.Attributes;
+import xmlbs.tokens.TagToken;
+
+/**
+ * Tests for the Attributes class.
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public class AttributesTest extends TestCase {
+    private static final Properties prop = new Properties();
+    static {
+        prop.put("@ROOT", "p");
+        prop.put("p", "#TEXT $class");
+    }
+
+    /**
+     * Constructor for AttributesTest.
+     * @param arg0
+     */
+    public AttributesTest(String arg0) {
+        super(arg0);
+    }
+
+    public void testOrder () {
+        Attributes attrs = new Attributes(1);
+        Map expected = new HashMap();
+        String[] names = { "src", "alt", "width", "height", "alt", "class" };
+        for (int i = 0; i < names.length; i++) {
+            attrs.put(names[i], "v" + i);
+            expected.put(names[i], "v" + i);
+        }
+        assertEquals(expected, attrs);
+        assertEquals(5, attrs.size());
+        for (int i = 1; i < attrs.size(); i++) {
+            assertTrue(attrs.getName(i - 1).compareTo(attrs.getName(i)) < 0);
+        }
+        assertEquals("v4", attrs.get("alt"));
+        assertNull(attrs.get("href"));
+    }
+
+    public void testRemove () {
+        Attributes attrs = new Attributes();
+        attrs.put("a", "1");
+        attrs.put("b", "2");
+        attrs.put("c", "3");
+        for (Iterator it = attrs.entrySet().iterator(); it.hasNext();) {
+            Map.Entry en = (Map.Entry) it.next();
+            if (!en.getKey().equals("b")) {
+                it.remove();
+            }
+        }
+        assertEquals(1, attrs.size());
+        assertEquals("2", attrs.get("b"));
+        assertEquals("2", attrs.remove("b"));
+        assertTrue(attrs.isEmpty());
+    }
+
+    public void testEmpty () {
+        assertTrue(Attributes.EMPTY.isEmpty());
+        try {
+            Attributes.EMPTY.put("a", "1");
+            fail("shared empty attributes modified");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    public void testModifyEmptyTag () {
+        DocumentStructure ds = new DummyDocumentStructure();
+        TagToken tag = new TagToken("p", ds);
+        tag.getAttributes().put("class", "x");
+        assertEquals("<p class=\"x\">", tag.toString());
+        assertTrue(Attributes.EMPTY.isEmpty());
+
+        // close tags of document structures can not be modified
+        DocumentStructure[] structures = {
+            ds, new PropertiesDocumentStructure(prop),
+        };
+        for (int i = 0; i < structures.length; i++) {
+            tag = structures[i].getCloseTag("p");
+            try {
+                tag.getAttributes().put("class", "x");
+                fail("close tag modified");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+            assertEquals("</p>", structures[i].getCloseTag("p").toString());
+            assertTrue(structures[i].getCloseTag("p").getAttributes().isEmpty());
+        }
+        assertTrue(Attributes.EMPTY.isEmpty());
+    }
+
+    public void testParseOnDemand () {
+        DocumentStructure ds = new DummyDocumentStructure();
+        String[] raws = {
+            "a href='x.html' title=\"a &amp; b\" name=c",
+            "img src=x.png alt='y' /",
+            "br/",
+            "/p",
+        };
+        for (int i = 0; i < raws.length; i++) {
+            CountingSequence raw = new CountingSequence(raws[i]);
+            TagToken tag = new TagToken(raw, ds);
+            int reads = raw.reads;
+
+            // name and type known without parsing attributes
+            String name = tag.getName();
+            boolean open = tag.isOpenTag();
+            boolean empty = tag.isEmptyTag();
+            assertEquals(raws[i], reads, raw.reads);
+
+            // same as parsed before asked for
+            TagToken parsed = new TagToken(raws[i], ds);
+            parsed.getAttributes();
+            assertEquals(raws[i], parsed.getName(), name);
+            assertEquals(raws[i], parsed.isOpenTag(), open);
+            assertEquals(raws[i], parsed.isEmptyTag(), empty);
+            assertEquals(raws[i], parsed.toString(), tag.toString());
+            assertEquals(raws[i], parsed.getAttributes(), tag.getAttributes());
+        }
+
+        // attributes read when first asked for, only once
+        CountingSequence raw = new CountingSequence(raws[0]);
+        TagToken tag = new TagToken(raw, ds);
+        int reads = raw.reads;
+        assertEquals(3, tag.getAttributes().size());
+        assertTrue(raw.reads > reads);
+        reads = raw.reads;
+        tag.toString();
+        tag.getAttributes();
+        assertEquals(reads, raw.reads);
+    }
+
+    /**
+     * Character sequence counting characters read.
+     */
+    private static class CountingSequence implements CharSequence {
+        /** characters */
+        private final String s;
+        /** number of characters read */
+        int reads = 0;
+
+        CountingSequence (String s) {
+            this.s = s;
+        }
+
+        public char charAt (int i) {
+            reads++;
+            return s.charAt(i);
+        }
+
+        public int length () {
+            return s.length();
+        }
+
+        public CharSequence subSequence (int start, int end) {
+            reads += end - start;
+            return s.substring(start, end);
+        }
+
+        public String toString () {
+            return s;
+        }
+    }
+}
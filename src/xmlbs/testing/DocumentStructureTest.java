@@ -0,0 +1,275 @@
+package xmlbs.testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import xmlbs.DocumentStructure;
+import xmlbs.NameIndex;
+import xmlbs.PropertiesDocumentStructure;
+import xmlbs.XMLBS;
+import xmlbs.tokens.TagCache;
+import xmlbs.tokens.TagToken;
+import xmlbs.tokens.TextToken;
+
+/**
+ * Tests for the PropertiesDocumentStructure class.
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public class DocumentStructureTest extends TestCase {
+    private static final Properties prop = new Properties();
+    static {
+        prop.put("@ROOT", "table");
+        prop.put("table", "tr $width $height");
+        prop.put("tr", "td th");
+        prop.put("td", "_cell");
+        prop.put("th", "_cell");
+        prop.put("_cell", "#TEXT table $colspan $rowspan");
+        prop.put("&", "nbsp");
+    }
+
+    /**
+     * Constructor for DocumentStructureTest.
+     * @param arg0
+     */
+    public DocumentStructureTest(String arg0) {
+        super(arg0);
+    }
+
+    private static TagToken tag(String raw, DocumentStructure ds) {
+        return new TagToken(raw, ds);
+    }
+
+    private static String process(String in, DocumentStructure ds)
+    throws IOException {
+        XMLBS bs = new XMLBS(in, ds);
+        bs.process();
+        StringWriter out = new StringWriter();
+        bs.write(out);
+        return out.toString();
+    }
+
+    public void testKnownTag() {
+        DocumentStructure ds = new PropertiesDocumentStructure(prop);
+        assertTrue(ds.isKnownTag(tag("table", ds)));
+        assertTrue(ds.isKnownTag(tag("/td", ds)));
+        assertTrue(!ds.isKnownTag(tag("div", ds)));
+        assertTrue(!ds.isKnownTag(tag("TD", ds)));
+        assertTrue(ds.getTagId("td") >= 0);
+        assertTrue(ds.getTagId("div") == -1);
+        assertTrue(ds.getTagId("td") == tag("td", ds).getId(ds));
+    }
+
+    public void testCanContain() {
+        DocumentStructure ds = new PropertiesDocumentStructure(prop);
+        TextToken text = new TextToken("foo", ds);
+        String d[][] = {
+            // parent, child, allowed
+            { null, "table", "true" },
+            { null, "tr", "false" },
+            { "table", "tr", "true" },
+            { "table", "td", "false" },
+            { "td", "table", "true" },
+            { "th", "tr", "false" },
+            { "div", "tr", "false" },
+            { "tr", "div", "false" },
+        };
+        for (int i = 0; i < d.length; i++) {
+            TagToken parent = d[i][0] == null ? null : tag(d[i][0], ds);
+            boolean allowed = Boolean.valueOf(d[i][2]).booleanValue();
+            assertTrue(d[i][0] + " contains " + d[i][1],
+                       ds.canContain(parent, tag(d[i][1], ds)) == allowed);
+        }
+        assertTrue(ds.canContain(tag("td", ds), text));
+        assertTrue(!ds.canContain(tag("tr", ds), text));
+        assertTrue(!ds.canContain(null, text));
+
+        // tag from other document structure
+        DocumentStructure ds0 = new DummyDocumentStructure();
+        assertTrue(ds.canContain(tag("table", ds0), tag("tr", ds0)));
+        assertTrue(ds.canContain(ds.getCloseTag("table"), tag("tr", ds)));
+    }
+
+    public void testRetainKnownAttributes() {
+        DocumentStructure ds = new PropertiesDocumentStructure(prop);
+        assertTrue(ds.isKnownAttribute(tag("td", ds), "colspan"));
+        assertTrue(!ds.isKnownAttribute(tag("td", ds), "width"));
+        assertTrue(!ds.isKnownAttribute(tag("td", ds), "foo"));
+        assertTrue(!ds.isKnownAttribute(tag("div", ds), "colspan"));
+
+        // filtered while parsing, after parsing and from cache
+        TagCache cache = new TagCache(ds);
+        cache.getTag("td colspan=2 width=3 rowspan=4");
+        TagToken[] toks = {
+            tag("td colspan=2 width=3 rowspan=4", ds),
+            tag("td colspan=2 width=3 rowspan=4", ds),
+            cache.getTag("td colspan=2 width=3 rowspan=4"),
+        };
+        toks[1].getAttributes();
+        for (int i = 0; i < toks.length; i++) {
+            ds.retainKnownAttributes(toks[i]);
+            assertTrue("{colspan=2, rowspan=4}".equals(toks[i].getAttributes().toString()));
+        }
+        assertTrue(cache.getTag("td colspan=2 width=3 rowspan=4").getAttributes().size() == 3);
+
+        TagToken tok = tag("td width=3", ds);
+        tok.getAttributes();
+        ds.retainKnownAttributes(tok);
+        assertTrue(tok.getAttributes().isEmpty());
+
+        tok = tag("div colspan=2", ds);
+        ds.retainKnownAttributes(tok);
+        assertTrue(tok.getAttributes().isEmpty());
+    }
+
+    public void testIgnoreCase() {
+        PropertiesDocumentStructure ds = new PropertiesDocumentStructure(prop);
+        assertTrue("TD".equals(ds.getTagName("TD")));
+        assertTrue("ColSpan".equals(ds.getTagAttribute("td", "ColSpan")));
+
+        ds.setIgnoreCase(true);
+        assertTrue("td".equals(ds.getTagName("TD")));
+        assertTrue("td".equals(ds.getTagName("tD")));
+        assertTrue("DIV".equals(ds.getTagName("DIV")));
+        assertTrue("colspan".equals(ds.getTagAttribute("td", "ColSpan")));
+        assertTrue("Width".equals(ds.getTagAttribute("td", "Width")));
+        assertTrue("ColSpan".equals(ds.getTagAttribute("div", "ColSpan")));
+
+        TagToken tok = tag("TD COLSPAN=2 WIDTH=3", ds);
+        assertTrue("td".equals(tok.getName()));
+        assertTrue(ds.isKnownTag(tok));
+        ds.retainKnownAttributes(tok);
+        assertTrue("{colspan=2}".equals(tok.getAttributes().toString()));
+    }
+
+    public void testNameIndex() {
+        NameIndex idx = new NameIndex(Arrays.asList(new String[] {
+            "foo", "Bar", "bar", "BAZ"
+        }));
+        assertTrue("foo".equals(idx.get("foo", false)));
+        assertTrue(idx.get("Foo", false) == null);
+        assertTrue("foo".equals(idx.get("FOO", true)));
+        assertTrue("bar".equals(idx.get("bar", true)));
+        assertTrue("Bar".equals(idx.get("bAR", true)));
+        assertTrue("BAZ".equals(idx.get("<baz>", 1, 4, true)));
+        assertTrue(idx.get("<baz>", 1, 3, true) == null);
+        assertTrue(idx.get("qux", true) == null);
+        assertTrue(new NameIndex(Arrays.asList(new String[0])).get("", true) == null);
+    }
+
+    public void testBuilder() throws Exception {
+        final DocumentStructure ds = new PropertiesDocumentStructure.Builder()
+            .setProperties(prop).setIgnoreCase(true).build();
+        assertTrue(ds.getIgnoreCase());
+        assertTrue("td".equals(ds.getTagName("TD")));
+        try {
+            ds.setIgnoreCase(false);
+            fail("frozen document structure changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            new PropertiesDocumentStructure.Builder().build();
+            fail("built without properties");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // shared between threads
+        final String in = "<TABLE WIDTH=1><TR><TD COLSPAN=2 FOO=3>foo &NBSP; bar";
+        final String out = process(in, ds);
+        final boolean[] ok = new boolean[4];
+        Thread[] threads = new Thread[ok.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        boolean same = true;
+                        for (int j = 0; j < 100; j++) {
+                            same &= out.equals(process(in, ds));
+                            same &= closeTag(ds, "td");
+                        }
+                        ok[n] = same;
+                    } catch (Exception e) {
+                        // not ok
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertTrue("thread " + i + " failed", ok[i]);
+        }
+    }
+
+    /**
+     * Try to change shared close tag.
+     * @param ds document structure
+     * @param name tag name
+     * @return true when close tag is unchanged
+     */
+    private static boolean closeTag(DocumentStructure ds, String name) {
+        TagToken tag = ds.getCloseTag(name);
+        try {
+            tag.getAttributes().put("colspan", "2");
+            return false;
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        ds.retainKnownAttributes(tag);
+        return ds.getCloseTag(name) == tag && tag.getId(ds) == ds.getTagId(name)
+            && ("</" + name + ">").equals(tag.toString())
+            && ("<" + name + "/>").equals(tag.toString(TagToken.EMPTY));
+    }
+
+    public void testSnapshot() throws IOException {
+        PropertiesDocumentStructure ds = new PropertiesDocumentStructure(prop);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ds.writeSnapshot(out);
+        byte[] snapshot = out.toByteArray();
+
+        PropertiesDocumentStructure ds0 = PropertiesDocumentStructure.readSnapshot(
+            new ByteArrayInputStream(snapshot));
+        assertTrue(ds.toString().equals(ds0.toString()));
+        assertTrue(ds.getTagId("td") == ds0.getTagId("td"));
+        assertTrue(ds0.canContain(tag("td", ds0), tag("table", ds0)));
+        assertTrue(!ds0.canContain(tag("tr", ds0), tag("table", ds0)));
+        assertTrue(ds0.isKnownAttribute(tag("td", ds0), "colspan"));
+        assertTrue("nbsp".equals(ds0.getEntityRef("nbsp")));
+
+        String in = "<TABLE WIDTH=1><TR><TD COLSPAN=2 FOO=3>foo &NBSP; bar</table>";
+        DocumentStructure ds1 = new PropertiesDocumentStructure.Builder()
+            .readSnapshot(new ByteArrayInputStream(snapshot))
+            .setIgnoreCase(true).build();
+        ds.setIgnoreCase(true);
+        assertTrue(process(in, ds).equals(process(in, ds1)));
+
+        snapshot[0]++;
+        try {
+            PropertiesDocumentStructure.readSnapshot(new ByteArrayInputStream(snapshot));
+            fail("read bad snapshot");
+        } catch (IOException e) {
+            // expected
+        }
+        snapshot[0]--;
+
+        // stale snapshot
+        Properties changed = new Properties();
+        changed.putAll(prop);
+        DocumentStructure ds2 = new PropertiesDocumentStructure.Builder()
+            .readSnapshot(new ByteArrayInputStream(snapshot), changed).build();
+        assertTrue(ds.toString().equals(ds2.toString()));
+        changed.put("tr", "td");
+        ds2 = new PropertiesDocumentStructure.Builder()
+            .readSnapshot(new ByteArrayInputStream(snapshot), changed).build();
+        assertTrue(ds2.canContain(tag("tr", ds2), tag("td", ds2)));
+        assertTrue(!ds2.canContain(tag("tr", ds2), tag("th", ds2)));
+    }
+}
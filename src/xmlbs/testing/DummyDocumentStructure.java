@@ -22,6 +22,7 @@
 package xmlbs.testing;
 
 import xmlbs.DocumentStructure;
+import xmlbs.tokens.Attributes;
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.Token;
 
@@ -73,6 +74,17 @@ public class DummyDocumentStructure implements DocumentStructure {
 	return name;
     }
 
+    /**
+     * Do nothing..
+     * @param text ignored parameter
+     * @param start ignored parameter
+     * @param end ignored parameter
+     * @return 0
+     */
+    public int matchEntityRef (CharSequence text, int start, int end) {
+	return 0;
+    }
+
     /**
      * Do nothing..
      * @param tag ignored parameter
@@ -82,6 +94,25 @@ public class DummyDocumentStructure implements DocumentStructure {
 	return true;
     }
 
+    /**
+     * Do nothing..
+     * @param name ignored parameter
+     * @return -1
+     */
+    public int getTagId (String name) {
+	return -1;
+    }
+
+    /**
+     * Do nothing..
+     * @param tag ignored parameter
+     * @param attr ignored parameter
+     * @return true
+     */
+    public boolean isKnownAttribute (TagToken tag, String attr) {
+	return true;
+    }
+
     /**
      * Do nothing..
      * @param tag ignored parameter
@@ -90,6 +121,14 @@ public class DummyDocumentStructure implements DocumentStructure {
 	// nop
     }
 
+    /**
+     * @param name tag name
+     * @return new close tag
+     */
+    public TagToken getCloseTag (String name) {
+	return new TagToken(name, Attributes.EMPTY, TagToken.CLOSE);
+    }
+
     /**
      * Do nothing..
      * @param parent ignored parameter
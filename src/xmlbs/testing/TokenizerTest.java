@@ -22,18 +22,26 @@
 package xmlbs.testing;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Vector;
 import java.util.Properties;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import xmlbs.DocumentStructure;
+import xmlbs.ParallelTokenizer;
 import xmlbs.PropertiesDocumentStructure;
 import xmlbs.Tokenizer;
+import xmlbs.XMLBS;
 import xmlbs.tokens.CDATAToken;
 import xmlbs.tokens.CommentToken;
+import xmlbs.tokens.TagCache;
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.TextToken;
 import xmlbs.tokens.Token;
@@ -199,6 +207,9 @@ public class TokenizerTest extends TestCase {
                     { "<foo foo=bar=foo>", "<foo foo=\"bar=foo\">" },
                     { "<foo foo='\"bar=foo\"'>", "<foo foo=\"&#034;bar=foo&#034;\">" },
                     { "<foo foo=\"'bar=foo'\">", "<foo foo=\"&#039;bar=foo&#039;\">" },
+                    { "<foo foo = 'bar baz' bar=\"'\">", "<foo bar=\"&#039;\" foo=\"bar baz\">" },
+                    { "<foo foo='bar bar=baz>", "<foo bar=\"baz\" foo=\"&#039;bar\">" },
+                    { "<foo foo= bar=baz />", "<foo foo=\"bar=baz\"/>" },
                 };
             for (int i = 0; i < d.length; i++) {
 		String in = d[i][0];
@@ -339,7 +350,13 @@ public class TokenizerTest extends TestCase {
 		{ "&#0;&#xff;&#11;&#xFF;", "&#0;&#xff;&#11;&#xFF;" },
 		{ "&foo;&bar;&fam;", "&foo;&bar;&amp;fam;" },
 		{ "&foo ;&bar;&fam;", "&amp;foo ;&bar;&amp;fam;" },
+		{ "&foo &fam &barfoo &Bar", "&foo; &amp;fam &amp;barfoo &amp;Bar" },
 		{ "<tag attr='&foo ;&bar;&fam;'>", "<tag attr=\"&amp;foo ;&bar;&amp;fam;\">" },
+		// missing semi-colon
+		{ "&foonote &barn &foo", "&amp;foonote &amp;barn &foo;" },
+		{ "?q=x&foo=1&bar=2", "?q=x&amp;foo=1&amp;bar=2" },
+		{ "<tag attr='?q=x&foo=1&bar'>", "<tag attr=\"?q=x&amp;foo=1&amp;bar\">" },
+		{ "<tag attr='&foo &bar'>", "<tag attr=\"&amp;foo &amp;bar\">" },
 	    };
 	    for (int i = 0; i < d.length; i++) {
 		String in = d[i][0];
@@ -369,6 +386,7 @@ public class TokenizerTest extends TestCase {
 		{ "&foo;&bar;&fam;", "&foo;&bar;&amp;fam;" },
 		{ "&foo ;&baR;&FAM;", "&amp;foo ;&baR;&amp;FAM;" },
 		{ "&FOO;&bar;&FAM;", "&foo;&bar;&amp;FAM;" },
+		{ "&FOO &FAM &BARfoo &baR", "&foo; &amp;FAM &amp;BARfoo &baR;" },
 		{ "<tag attr=&FOO;&bar;&FAM;>", "<tag attr=\"&foo;&bar;&amp;FAM;\">" },
 	    };
 	    for (int i = 0; i < d.length; i++) {
@@ -554,4 +572,516 @@ public class TokenizerTest extends TestCase {
 		    data.equals("]>"));
         }
     }
+
+    /**
+     * Test reading of 1 MB and 10 MB comments and CDATA sections full
+     * of &gt; characters, spanning many read buffers.  The number of
+     * reads from the underlying reader should scale linear with the
+     * size of the section, independent of machine load: the buffer
+     * should grow with the section so reads get larger, instead of
+     * reading a few characters after copying the section so far.
+     * @throws IOException when reading fails
+     */
+    public void testLongDecl ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[][] = { { "<!--", "-->" }, { "<![CDATA[", "]]>" } };
+
+	for (int i = 0; i < d.length; i++) {
+	    int small = readLongDecl(d[i][0], d[i][1], 1024 * 1024, ds);
+	    assertTrue(
+		    "reading 1 MB " + d[i][0] + " took " + small + " reads",
+		    small <= 1024 * 1024 / (8 * 1024));
+
+	    int large = readLongDecl(d[i][0], d[i][1], 10 * 1024 * 1024, ds);
+	    assertTrue(
+		    "reading 10 MB " + d[i][0] + " took " + large + " reads, "
+		    + "1 MB took " + small + " reads",
+		    large <= 10 * small + 10);
+	}
+    }
+
+    /**
+     * @param open section start marker
+     * @param close section end marker
+     * @param size approximate size of section data
+     * @param ds document structure
+     * @return number of reads from underlying reader
+     * @throws IOException when reading fails
+     */
+    private int readLongDecl (String open, String close, int size,
+	    DocumentStructure ds)
+    throws IOException {
+	StringBuffer sb = new StringBuffer(size + 16);
+	while (sb.length() < size) {
+	    sb.append("a->]>");
+	}
+	String data = sb.toString();
+	String d = open + data + close + " ";
+
+	CountingReader in = new CountingReader(d);
+	Tokenizer tokenizer = new Tokenizer(in, ds);
+	List tokens = tokenizer.readAllTokens();
+
+	assertTrue(
+		"didn't read 2 tokens from " + open + " section but " + tokens.size(),
+		tokens.size() == 2);
+
+	Object tok = tokens.get(0);
+	String read = tok instanceof CommentToken
+		? ((CommentToken) tok).getData() : ((CDATAToken) tok).getData();
+	assertTrue(
+		"didn't read " + data.length() + " chars from " + open
+		+ " section but " + read.length(),
+		read.equals(data));
+	assertTrue(
+		"read " + in.chars + " chars for " + d.length() + " chars",
+		in.chars == d.length());
+
+	return in.reads;
+    }
+
+    /**
+     * Reader counting reads and characters read.
+     */
+    private static class CountingReader extends StringReader {
+	/** number of reads */
+	int reads = 0;
+	/** number of characters read */
+	int chars = 0;
+
+	/**
+	 * @param s data to read
+	 */
+	CountingReader (String s) {
+	    super(s);
+	}
+
+	public int read (char[] buf, int off, int len)
+	throws IOException {
+	    int n = super.read(buf, off, len);
+	    reads++;
+	    chars += n > 0 ? n : 0;
+	    return n;
+	}
+    }
+
+    /**
+     * Test reading of unterminated comments and CDATA sections
+     * larger than any read buffer.
+     * @throws IOException when reading fails
+     */
+    public void testUnterminatedDecl ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = { "<!--", "<![CDATA[" };
+
+	StringBuffer sb = new StringBuffer();
+	while (sb.length() < 1024 * 1024) {
+	    sb.append("foo bar ");
+	}
+	String data = sb.toString();
+
+	for (int i = 0; i < d.length; i++) {
+	    String in = d[i] + data + "<a>" + d[i] + data;
+	    Tokenizer tokenizer = new Tokenizer(new StringReader(in), ds);
+	    List tokens = tokenizer.readAllTokens();
+
+	    assertTrue(
+		    "didn't read 3 tokens from unterminated " + d[i] + " but " + tokens.size(),
+		    tokens.size() == 3);
+
+	    TextToken tok0 = (TextToken) tokens.get(0);
+	    TagToken tok1 = (TagToken) tokens.get(1);
+	    TextToken tok2 = (TextToken) tokens.get(2);
+
+	    assertTrue(
+		    "didn't read text before 'a' tag from unterminated " + d[i],
+		    tok0.getData().equals(d[i] + data));
+	    assertTrue(
+		    "didn't read 'a' tag from unterminated " + d[i],
+		    tok1.getName().equals("a"));
+	    assertTrue(
+		    "didn't read text after 'a' tag from unterminated " + d[i],
+		    tok2.getData().equals(d[i] + data));
+	}
+    }
+
+    /**
+     * Test iterating over tokens.
+     * @throws IOException when reading fails
+     */
+    public void testIterator ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	String d = "foo<a>bar<!-- baz --></a><![CDATA[ ]]><";
+
+	List tokens = new Tokenizer(d, ds).readAllTokens();
+	Iterator it = new Tokenizer(d, ds).iterator();
+	for (int i = 0; i < tokens.size(); i++) {
+	    assertTrue(
+		    "iterator ended after " + i + " tokens from '" + d + "'",
+		    it.hasNext());
+
+	    String expected = tokens.get(i).toString();
+	    String data = it.next().toString();
+	    assertTrue(
+		    "iterator didn't give '" + expected + "' but '" + data + "'",
+		    data.equals(expected));
+	}
+	assertTrue(
+		"iterator didn't end after " + tokens.size() + " tokens from '" + d + "'",
+		!it.hasNext());
+    }
+
+    /**
+     * Test pushing data into tokenizer in small chunks.
+     * @throws IOException when reading fails
+     */
+    public void testPush ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = {
+	    "foo<a x='1'>bar<!-- baz --></a><![CDATA[ ]]><",
+	    "<!-<!--<!---->-->", "<![CDATA<![CDATA[<![CDATA[]]>]]>",
+	    "<<foobar>>", "<!-- <a> <![CDATA[ <b>",
+	};
+
+	for (int i = 0; i < d.length; i++) {
+	    for (int size = 1; size < 4; size++) {
+		final List tokens = new Vector();
+		Tokenizer tokenizer = new Tokenizer(new Tokenizer.Handler() {
+		    public void token (Token tok) {
+			tokens.add(tok);
+		    }
+		}, ds);
+		char[] data = d[i].toCharArray();
+		for (int j = 0; j < data.length; j += size) {
+		    tokenizer.feed(data, j, Math.min(size, data.length - j));
+		}
+		tokenizer.end();
+
+		List expected = new Tokenizer(d[i], ds).readAllTokens();
+		assertTrue(
+			"didn't read " + expected + " from '" + d[i] + "' in chunks of "
+			+ size + " but " + tokens,
+			tokens.toString().equals(expected.toString()));
+	    }
+	}
+    }
+
+    /**
+     * Test reading from a shared character array.
+     * @throws IOException when reading fails
+     */
+    public void testShared ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = {
+	    "foo<a x='1'>bar<!-- baz --></a><![CDATA[ ]]><",
+	    "<!-<!--<!---->-->", "<<foobar>> &amp; <!-- <a> <![CDATA[ <b>",
+	};
+
+	for (int i = 0; i < d.length; i++) {
+	    char[] data = ("xx" + d[i] + "xx").toCharArray();
+	    Tokenizer tokenizer = new Tokenizer(data, 2, d[i].length(), ds);
+	    List tokens = tokenizer.readAllTokens();
+
+	    List expected = new Tokenizer(d[i], ds).readAllTokens();
+	    assertTrue(
+		    "didn't read " + expected + " from '" + d[i] + "' but " + tokens,
+		    tokens.toString().equals(expected.toString()));
+	}
+    }
+
+    /**
+     * Test reading UTF-8 input as bytes.
+     * @throws IOException when reading fails
+     */
+    public void testBytes ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = {
+	    "caf\u00e9 <a title='\u00e9t\u00e9'>\u4e2d</a>",
+	    "<\u00e9a> <\u00d7b> <!-- \u05d0 --> <![CDATA[\u4e2d]]>",
+	};
+
+	for (int i = 0; i < d.length; i++) {
+	    ByteBuffer in = ByteBuffer.wrap(d[i].getBytes("UTF-8"));
+	    List tokens = new Tokenizer(in, "UTF-8", ds).readAllTokens();
+	    List expected = new Tokenizer(d[i], ds).readAllTokens();
+
+	    assertTrue(
+		    "didn't read " + expected.size() + " tokens from '" + d[i]
+		    + "' but " + tokens.size(),
+		    tokens.size() == expected.size());
+	    for (int j = 0; j < tokens.size(); j++) {
+		String data = new String(
+			tokens.get(j).toString().getBytes("ISO-8859-1"), "UTF-8");
+		assertTrue(
+			"didn't read '" + expected.get(j) + "' from '" + d[i]
+			+ "' but '" + data + "'",
+			data.equals(expected.get(j).toString()));
+	    }
+	}
+    }
+
+    /**
+     * Test reading tokens using multiple threads.
+     * @throws IOException when reading fails
+     */
+    public void testParallel ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = {
+	    "foo<a x='1'>bar<!-- baz --></a><![CDATA[ ]]><",
+	    "<!-<!--<!---->-->", "<<foobar>> &amp; <!-- <a> <![CDATA[ <b>",
+	    "<!-- <a> <b> <c> --> <d> text <e> more text < <f> <g",
+	};
+
+	for (int i = 0; i < d.length; i++) {
+	    List expected = new Tokenizer(d[i], ds).readAllTokens();
+	    for (int size = 1; size < 8; size++) {
+		ParallelTokenizer tokenizer = new ParallelTokenizer(d[i], ds);
+		tokenizer.setChunkSize(size);
+		List tokens = tokenizer.readAllTokens(3);
+		assertTrue(
+			"didn't read " + expected + " from '" + d[i] + "' but " + tokens,
+			tokens.toString().equals(expected.toString()));
+	    }
+	}
+    }
+
+    /**
+     * Test reading stray &lt; characters in text.
+     * @throws IOException when reading fails
+     */
+    public void testStray ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[] = {
+	    "a<b, c", "if a<b; then", "x</y=z", "1<2 and 3<4",
+	};
+
+	// tag names are checked when a maximum tag length is set
+	for (int i = 0; i < d.length; i++) {
+	    Tokenizer tokenizer = new Tokenizer(d[i], ds);
+	    tokenizer.setMaxTagLength(1024);
+	    List tokens = tokenizer.readAllTokens();
+
+	    assertTrue(
+		    "didn't read 1 token from '" + d[i] + "' but " + tokens,
+		    tokens.size() == 1);
+	    assertTrue(
+		    "didn't read a text token from '" + d[i] + "'",
+		    tokens.get(0) instanceof TextToken);
+	}
+
+	{
+	    String d1[][] = {
+		// input, without maximum, with maximum
+		{ "<br\\>", "[<br>]", "[&lt;br\\&gt;]" },
+		{ "<td\"x\">", "[<td>]", "[&lt;td&#034;x&#034;&gt;]" },
+		{ "<p;>", "[<p>]", "[&lt;p;&gt;]" },
+		{ "a<b, c", "[a, <b>]", "[a&lt;b, c]" },
+		{ "<a href=x>", "[<a href=\"x\">]", "[<a href=\"x\">]" },
+	    };
+	    for (int i = 0; i < d1.length; i++) {
+		Tokenizer tokenizer = new Tokenizer(d1[i][0], ds);
+		assertEquals(d1[i][0], d1[i][1], tokenizer.readAllTokens().toString());
+
+		tokenizer = new Tokenizer(d1[i][0], ds);
+		tokenizer.setMaxTagLength(1024);
+		assertEquals(d1[i][0], d1[i][2], tokenizer.readAllTokens().toString());
+	    }
+	}
+	{
+	    String d1 = "x <a href='foo'> y";
+	    Tokenizer tokenizer = new Tokenizer(d1, ds);
+	    tokenizer.setMaxTagLength(12);
+	    List tokens = tokenizer.readAllTokens();
+	    assertTrue(
+		    "didn't read 3 tokens from '" + d1 + "' but " + tokens,
+		    tokens.size() == 3 && tokens.get(1) instanceof TagToken);
+
+	    tokenizer = new Tokenizer(d1, ds);
+	    tokenizer.setMaxTagLength(11);
+	    tokens = tokenizer.readAllTokens();
+	    assertTrue(
+		    "didn't read 1 token from '" + d1 + "' but " + tokens,
+		    tokens.size() == 1 && tokens.get(0) instanceof TextToken);
+	}
+	// characters, not bytes, are counted in byte mode
+	{
+	    String d1 = "x <a t='caf\u00e9 \u4e2d \ud83d\ude00'> <b t='\u00e9\u00e9'> y";
+	    for (int max = 1; max < 24; max++) {
+		Tokenizer tokenizer = new Tokenizer(d1, ds);
+		tokenizer.setMaxTagLength(max);
+		String expected = tokenizer.readAllTokens().toString();
+
+		tokenizer = new Tokenizer(ByteBuffer.wrap(d1.getBytes("UTF-8")), "UTF-8", ds);
+		tokenizer.setMaxTagLength(max);
+		String got = tokenizer.readAllTokens().toString();
+		assertEquals("max " + max, expected,
+			     new String(got.getBytes("ISO-8859-1"), "UTF-8"));
+	    }
+	}
+    }
+
+    /**
+     * Test reading repeated tags from cache.
+     * @throws IOException when reading fails
+     */
+    public void testTagCache ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	String d = "<p><td class=a>x</td><td class=a>y</td><br/><td class=b></p><td class=a>";
+
+	TagCache cache = new TagCache(ds, 2);
+	Tokenizer tokenizer = new Tokenizer(d, ds);
+	tokenizer.setTagCache(cache);
+	List tokens = tokenizer.readAllTokens();
+	List expected = new Tokenizer(d, ds).readAllTokens();
+	assertEquals(expected.toString(), tokens.toString());
+	assertEquals(2, cache.getHits());
+	assertEquals(7, cache.getMisses());
+
+	// cached attributes are not shared
+	TagToken tag = (TagToken) tokens.get(1);
+	tag.getAttributes().remove("class");
+	assertEquals("<td>", tag.toString());
+	assertEquals("<td class=\"a\">", tokens.get(4).toString());
+	tag = cache.getTag("td class=a");
+	assertEquals("a", tag.getAttributes().get("class"));
+
+	// found without making a string of the raw text
+	cache = new TagCache(ds);
+	char[] buf = "<td class=a>".toCharArray();
+	assertEquals("<td class=\"a\">", cache.getTag(buf, 1, buf.length - 2).toString());
+	final int[] strings = { 0 };
+	CharSequence raw = new CharSequence() {
+	    private final String s = "td class=a";
+	    public char charAt (int i) {
+		return s.charAt(i);
+	    }
+	    public int length () {
+		return s.length();
+	    }
+	    public CharSequence subSequence (int start, int end) {
+		return s.substring(start, end);
+	    }
+	    public String toString () {
+		strings[0]++;
+		return s;
+	    }
+	};
+	assertEquals("<td class=\"a\">", cache.getTag(raw).toString());
+	assertEquals("<td class=\"a\">", cache.getTag(buf, 1, buf.length - 2).toString());
+	assertEquals(0, strings[0]);
+	assertEquals(2, cache.getHits());
+	assertEquals(1, cache.getMisses());
+
+	// shared by parallel chunks
+	StringBuffer sb = new StringBuffer();
+	for (int i = 0; i < 200; i++) {
+	    sb.append(d);
+	}
+	cache = new TagCache(ds);
+	ParallelTokenizer ptok = new ParallelTokenizer(sb.toString(), ds);
+	ptok.setChunkSize(64);
+	ptok.setTagCache(cache);
+	tokens = ptok.readAllTokens(4);
+	expected = new Tokenizer(sb.toString(), ds).readAllTokens();
+	assertEquals(expected.toString(), tokens.toString());
+	assertTrue(cache.getMisses() >= 5);
+	assertTrue(cache.getHits() >= 200 * 9 - cache.getMisses());
+    }
+
+    /**
+     * Test entity references without semi-colon in html.
+     */
+    public void testMissingSemicolon ()
+    throws IOException {
+	DocumentStructure ds0 = new PropertiesDocumentStructure("xmlbs/html.properties");
+	String in = "<p><a href=\"/search?q=x&lang=en&order=asc&copy=1\">&notes &sub "
+		+ "&lang=en&copy=1 &copy &notin</a></p>";
+	XMLBS bs = new XMLBS(in, ds0);
+	bs.process();
+	StringWriter out = new StringWriter();
+	bs.write(out);
+	String s = out.toString();
+	assertTrue(s, s.indexOf("href=\"/search?q=x&amp;lang=en&amp;order=asc&amp;copy=1\"") != -1);
+	assertTrue(s, s.indexOf("&amp;notes &sub; &amp;lang=en&amp;copy=1 &copy; &notin;") != -1);
+
+	// decided per reference, not by semi-colons further on
+	String d[][] = {
+	    { "&nbsp foo", "&nbsp; foo" },
+	    { "&nbsp foo; x", "&nbsp; foo; x" },
+	    { "&nbsp &copy; &nbspx; &lt", "&nbsp; &copy; &amp;nbspx; &lt;" },
+	};
+	for (int i = 0; i < d.length; i++) {
+	    List tokens = new Tokenizer(d[i][0], ds0).readAllTokens();
+	    assertEquals(d[i][0], "[" + d[i][1] + "]", tokens.toString());
+	}
+    }
+
+    /**
+     * Test escaping text.
+     */
+    public void testFixText () {
+	DocumentStructure ds = new DummyDocumentStructure();
+	final String d[][] = {
+	    { "a < b & c > 'd' \"e\"", "a &lt; b &amp; c &gt; &#039;d&#039; &#034;e&#034;" },
+	    { "&amp; &foo; &#12; &#x1F; &", "&amp; &foo; &#12; &#x1F; &amp;" },
+	    { "&#12abc; x", "&#12; x" },
+	    { "& 1; x1F;", "&#x1F; x1F;" },
+	    { "&#; &", "&amp;#; &amp;" },
+	};
+	for (int i = 0; i < d.length; i++) {
+	    assertEquals(d[i][1], TextToken.fixText(d[i][0], ds));
+	}
+    }
+
+    /**
+     * Test writing tokens.
+     * @throws IOException when reading fails
+     */
+    public void testWrite ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	String d = "a&amp;<b c='d&e'/><!-- x --><![CDATA[<y>]]>'z'</b>";
+	List tokens = new Tokenizer(d.toCharArray(), 0, d.length(), ds).readAllTokens();
+	StringWriter out = new StringWriter();
+	StringBuffer expected = new StringBuffer();
+	for (Iterator it = tokens.iterator(); it.hasNext();) {
+	    Token tok = (Token) it.next();
+	    tok.write(out);
+	    expected.append(tok.toString());
+	}
+	assertEquals(expected.toString(), out.toString());
+    }
+
+    /**
+     * Test recognizing text which needs no escaping.
+     * @throws IOException when reading fails
+     */
+    public void testClean ()
+    throws IOException {
+	DocumentStructure ds = new DummyDocumentStructure();
+	String d = "abc<b>d&amp;e</b>f<g h<i>j>k<l>m'n";
+	List tokens = new Tokenizer(d, ds).readAllTokens();
+	String[] expected = { "abc", "d&amp;e", "f&lt;g h", "j&gt;k", "m&#039;n" };
+	boolean[] clean = { true, false, false, false, false };
+	int n = 0;
+	for (Iterator it = tokens.iterator(); it.hasNext();) {
+	    Token tok = (Token) it.next();
+	    if (tok instanceof TextToken) {
+		TextToken txt = (TextToken) tok;
+		assertEquals(clean[n], txt.isClean());
+		assertEquals(expected[n], txt.toString());
+		n++;
+	    }
+	}
+	assertEquals(expected.length, n);
+    }
 }
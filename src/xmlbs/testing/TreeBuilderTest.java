@@ -1,6 +1,8 @@
 package xmlbs.testing;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.TestCase;
 import xmlbs.DocumentStructure;
@@ -10,6 +12,7 @@ import xmlbs.tokens.CommentToken;
 import xmlbs.tokens.TagToken;
 import xmlbs.tokens.TextToken;
 import xmlbs.tokens.Token;
+import xmlbs.tokens.TokenStore;
 
 /**
  * Tests for the TreeBuilder class.
@@ -73,4 +76,35 @@ public class TreeBuilderTest extends TestCase {
         }
     }
 
+    public void testFlatten () {
+        Token[] tokens = {
+            new TagToken("a", dummyDs),
+                new CommentToken("foo"),
+                new TagToken("b", dummyDs),
+                new TextToken("foo", dummyDs),
+                new TextToken("bar", dummyDs),
+                new TagToken("/b", dummyDs),
+                new TagToken("c y='a&b' x=\"1\"/", dummyDs),
+                new TextToken("baz", dummyDs),
+            new TagToken("/a", dummyDs),
+            new TagToken("/d", dummyDs),
+        };
+        TreeNode root = TreeBuilder.build(Arrays.asList(tokens));
+        List expected = TreeBuilder.flatten(root, new ArrayList());
+        TokenStore store = TreeBuilder.flatten(root, new TokenStore(dummyDs, 1));
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < store.size(); i++) {
+            Token tok = (Token) expected.get(i);
+            assertEquals(tok.toString(), store.toString(i));
+            assertEquals(TokenStore.kindOf(tok), store.getKind(i));
+            assertEquals(store.toString(i), store.get(i).toString());
+        }
+        assertEquals("<c x=\"1\" y=\"a&amp;b\"/>", store.toString(6));
+
+        store.mergeText();
+        assertEquals(expected.size() - 1, store.size());
+        assertEquals("foo bar", store.toString(3));
+        assertEquals(TokenStore.TEXT, store.getKind(3));
+        assertEquals(TokenStore.CLOSE_TAG, store.getKind(4));
+    }
 }
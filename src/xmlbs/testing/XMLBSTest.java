@@ -0,0 +1,103 @@
+package xmlbs.testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+import xmlbs.DocumentStructure;
+import xmlbs.PropertiesDocumentStructure;
+import xmlbs.XMLBS;
+
+/**
+ * Tests for the XMLBS class.
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public class XMLBSTest extends TestCase {
+    private static final DocumentStructure ds = new DummyDocumentStructure();
+
+    /**
+     * Constructor for XMLBSTest.
+     * @param arg0
+     */
+    public XMLBSTest(String arg0) {
+        super(arg0);
+    }
+
+    private static String write(XMLBS bs) throws IOException {
+        bs.process();
+        StringWriter out = new StringWriter();
+        bs.write(out);
+        return out.toString();
+    }
+
+    public void testWriteBytes() throws IOException {
+        String in = "<p a=\"\u00e9\">caf\u00e9 \u4e2d &amp; \ud83d\ude00</p>";
+        String out = "<p a=\"\u00e9\">caf\u00e9 \u4e2d &amp; \ud83d\ude00</p>";
+        byte[] b = in.getBytes("UTF-8");
+
+        // processed as bytes, decoded when writing characters
+        XMLBS bs = new XMLBS(new ByteArrayInputStream(b), ds, "UTF-8");
+        assertEquals(out, write(bs));
+
+        // written as original bytes to streams
+        bs = new XMLBS(new ByteArrayInputStream(b), ds, "UTF-8");
+        bs.process();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bs.write(bout);
+        assertEquals(out, new String(bout.toByteArray(), "UTF-8"));
+
+        // same as processed as characters
+        assertEquals(out, write(new XMLBS(in, ds)));
+    }
+
+    public void testChildlessTag() throws IOException {
+        DocumentStructure ds0 = new PropertiesDocumentStructure("xmlbs/html.properties");
+        // entity in attribute of tag written as empty tag
+        assertEquals("<p><img alt=\"&amp;\" src=\"a&amp;b\"/></p>",
+                     write(new XMLBS("<p><img alt=\"&amp;\" src=a&b></p>", ds0)));
+        assertEquals("<p><a title=\"&copy;\"/> x</p>",
+                     write(new XMLBS("<p><a title=\"&copy;\"></a> x</p>", ds0)));
+    }
+
+    public void testFileChannel() throws IOException {
+        String skip = "<skip>";
+        String in = "<p a=\"\u00e9\">caf\u00e9 \u4e2d &amp; \ud83d\ude00</p>";
+        // mapped into memory as bytes, read as characters
+        String[] encodings = { "UTF-8", "UTF-16BE" };
+        for (int i = 0; i < encodings.length; i++) {
+            String enc = encodings[i];
+            File file = File.createTempFile("xmlbs", ".html");
+            FileInputStream fin = null;
+            try {
+                FileOutputStream fout = new FileOutputStream(file);
+                fout.write((skip + in).getBytes(enc));
+                fout.close();
+                fin = new FileInputStream(file);
+                FileChannel channel = fin.getChannel();
+
+                // from start of file
+                assertEquals(enc, write(new XMLBS(skip + in, ds)),
+                             write(new XMLBS(channel, ds, enc)));
+                assertEquals(enc, file.length(), channel.position());
+
+                // from current position
+                channel.position(skip.getBytes(enc).length);
+                assertEquals(enc, write(new XMLBS(in, ds)),
+                             write(new XMLBS(channel, ds, enc)));
+                assertEquals(enc, file.length(), channel.position());
+            } finally {
+                if (fin != null) {
+                    fin.close();
+                }
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs.tokens;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact map of tag attributes.  Names and values are kept in
+ * arrays sorted by name, most tags have only a few attributes so
+ * looking them up by binary search is cheap and writing them in
+ * order needs no sorting.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public final class Attributes extends AbstractMap {
+    /** shared empty attributes, can not be modified */
+    public static final Attributes EMPTY = new Attributes(0);
+
+    /** attribute names in sorted order */
+    private String[] names;
+    /** attribute values in order of names */
+    private String[] values;
+    /** number of attributes */
+    private int size = 0;
+
+    /**
+     * Construct empty attributes.
+     */
+    public Attributes () {
+        this(4);
+    }
+
+    /**
+     * Construct empty attributes.
+     * @param capacity initial capacity
+     */
+    public Attributes (int capacity) {
+        names = new String[capacity];
+        values = new String[capacity];
+    }
+
+    /**
+     * Construct copy of attributes.
+     * @param attrs attributes to copy
+     */
+    public Attributes (Attributes attrs) {
+        this(attrs.size);
+        System.arraycopy(attrs.names, 0, names, 0, attrs.size);
+        System.arraycopy(attrs.values, 0, values, 0, attrs.size);
+        size = attrs.size;
+    }
+
+    /**
+     * @return number of attributes
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     * @param i index of attribute
+     * @return name of attribute
+     */
+    public String getName (int i) {
+        check(i);
+        return names[i];
+    }
+
+    /**
+     * @param i index of attribute
+     * @return value of attribute
+     */
+    public String getValue (int i) {
+        check(i);
+        return values[i];
+    }
+
+    /**
+     * @param key attribute name
+     * @return true if attribute exists
+     */
+    public boolean containsKey (Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    /**
+     * @param key attribute name
+     * @return attribute value or <TT>null</TT> if not exists
+     */
+    public Object get (Object key) {
+        int i = key instanceof String ? indexOf((String) key) : -1;
+        return i >= 0 ? values[i] : null;
+    }
+
+    /**
+     * Set attribute, the position of the attribute is found by
+     * binary search.
+     * @param key attribute name
+     * @param value attribute value
+     * @return previous value or <TT>null</TT>
+     * @throws UnsupportedOperationException for {@link #EMPTY}
+     */
+    public Object put (Object key, Object value) {
+        if (this == EMPTY) {
+            throw new UnsupportedOperationException();
+        }
+        String name = (String) key;
+        int i = indexOf(name);
+        if (i >= 0) {
+            Object old = values[i];
+            values[i] = (String) value;
+            return old;
+        }
+        i = -(i + 1);
+        if (size == names.length) {
+            String[] n = new String[size * 2 + 1];
+            String[] v = new String[n.length];
+            System.arraycopy(names, 0, n, 0, size);
+            System.arraycopy(values, 0, v, 0, size);
+            names = n;
+            values = v;
+        }
+        System.arraycopy(names, i, names, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        names[i] = name;
+        values[i] = (String) value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @param key attribute name
+     * @return previous value or <TT>null</TT>
+     */
+    public Object remove (Object key) {
+        int i = key instanceof String ? indexOf((String) key) : -1;
+        if (i < 0) {
+            return null;
+        }
+        Object old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    /**
+     * Remove all attributes.
+     */
+    public void clear () {
+        for (int i = 0; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return set view of attribute entries in order of names
+     */
+    public Set entrySet () {
+        return new AbstractSet() {
+            public int size () {
+                return size;
+            }
+            public Iterator iterator () {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    /**
+     * @param name attribute name
+     * @return index of attribute or <TT>-(insertion point + 1)</TT>
+     */
+    private int indexOf (String name) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = names[mid].compareTo(name);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * @param i index of attribute to remove
+     */
+    private void removeAt (int i) {
+        System.arraycopy(names, i + 1, names, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        names[size] = null;
+        values[size] = null;
+    }
+
+    /**
+     * @param i index to check
+     * @throws IndexOutOfBoundsException when out of range
+     */
+    private void check (int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(i));
+        }
+    }
+
+    /**
+     * Iterator over attribute entries.
+     */
+    private class EntryIterator implements Iterator {
+        /** index of next entry */
+        private int next = 0;
+        /** index of last returned entry, <TT>-1</TT> if none */
+        private int last = -1;
+
+        public boolean hasNext () {
+            return next < size;
+        }
+
+        public Object next () {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(names[last]);
+        }
+
+        public void remove () {
+            if (last == -1) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    /**
+     * Attribute entry, reads and writes through to attributes.
+     */
+    private class Entry implements Map.Entry {
+        /** attribute name */
+        private String name;
+
+        /**
+         * @param name attribute name
+         */
+        Entry (String name) {
+            this.name = name;
+        }
+
+        public Object getKey () {
+            return name;
+        }
+
+        public Object getValue () {
+            return get(name);
+        }
+
+        public Object setValue (Object value) {
+            return put(name, value);
+        }
+
+        public boolean equals (Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            Object v = getValue();
+            return name.equals(e.getKey())
+                    && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        public int hashCode () {
+            Object v = getValue();
+            return name.hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        public String toString () {
+            return name + "=" + getValue();
+        }
+    }
+}
@@ -21,6 +21,9 @@
 
 package xmlbs.tokens;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Token to represent and hold CDATA blocks.
  *
@@ -30,12 +33,12 @@ package xmlbs.tokens;
  */
 public class CDATAToken implements Token {
     /** character data */
-    private String data;
+    private CharSequence data;
 
     /**
      * @param data CDATA content without &lt;![CDATA[ and ]]&gt;
      */
-    public CDATAToken (String data) {
+    public CDATAToken (CharSequence data) {
         this.data = data;
     }
 
@@ -43,7 +46,10 @@ public class CDATAToken implements Token {
      * @return CDATA content
      */
     public String getData () {
-        return data;
+        if (!(data instanceof String)) {
+            data = data.toString();
+        }
+        return (String) data;
     }
 
     /**
@@ -52,4 +58,15 @@ public class CDATAToken implements Token {
     public String toString () {
         return "<![CDATA[" + getData() + "]]>";
     }
+
+    /**
+     * @param out writer to write wellformed CDATA block to
+     * @throws IOException when writing fails
+     */
+    public void write (Writer out)
+    throws IOException {
+        out.write("<![CDATA[");
+        CharSlice.write(out, data, 0, data.length());
+        out.write("]]>");
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs.tokens;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Range of characters in a shared buffer.  Tokens holding a slice
+ * only create a string of it when asked for one.  The buffer is not
+ * copied, it must not be modified as long as slices are in use.
+ *
+ * @see xmlbs.Tokenizer#Tokenizer(char[], int, int, xmlbs.DocumentStructure)
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public final class CharSlice implements CharSequence {
+    /** shared buffer */
+    private final char[] buf;
+    /** offset of slice in buffer */
+    private final int off;
+    /** length of slice */
+    private final int len;
+
+    /**
+     * @param buf shared buffer
+     * @param off offset of slice in buffer
+     * @param len length of slice
+     */
+    public CharSlice (char[] buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = len;
+    }
+
+    /**
+     * @return length of slice
+     */
+    public int length () {
+        return len;
+    }
+
+    /**
+     * @param index position in slice
+     * @return character at given position
+     */
+    public char charAt (int index) {
+        if (index < 0 || index >= len) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return buf[off + index];
+    }
+
+    /**
+     * @param start start position in slice
+     * @param end end position in slice
+     * @return slice of this slice sharing the same buffer
+     */
+    public CharSequence subSequence (int start, int end) {
+        if (start < 0 || end > len || start > end) {
+            throw new IndexOutOfBoundsException(start + "-" + end);
+        }
+        return new CharSlice(buf, off + start, end - start);
+    }
+
+    /**
+     * Write part of a character sequence without copying it to a
+     * string first when possible.
+     * @param out writer to write to
+     * @param seq characters to write
+     * @param start start position in sequence
+     * @param end end position in sequence
+     * @throws IOException when writing fails
+     */
+    static void write (Writer out, CharSequence seq, int start, int end)
+    throws IOException {
+        if (start == end) {
+            return;
+        }
+        if (seq instanceof String) {
+            out.write((String) seq, start, end - start);
+        } else if (seq instanceof CharSlice) {
+            CharSlice slice = (CharSlice) seq;
+            if (start < 0 || end > slice.len || start > end) {
+                throw new IndexOutOfBoundsException(start + "-" + end);
+            }
+            out.write(slice.buf, slice.off + start, end - start);
+        } else {
+            out.write(seq.subSequence(start, end).toString());
+        }
+    }
+
+    /**
+     * @return new string holding the characters of this slice
+     */
+    public String toString () {
+        return new String(buf, off, len);
+    }
+}
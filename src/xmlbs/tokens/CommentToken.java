@@ -21,6 +21,9 @@
 
 package xmlbs.tokens;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Token to represent and hold comment blocks.
  * <P><EM>TODO <TT>For compatibility, the string "--"
@@ -34,12 +37,12 @@ package xmlbs.tokens;
  */
 public class CommentToken implements Token {
     /** comment data */
-    private String data;
+    private CharSequence data;
 
     /**
      * @param data comment data without &lt;!-- and --&gt;
      */
-    public CommentToken (String data) {
+    public CommentToken (CharSequence data) {
         this.data = data;
     }
 
@@ -47,7 +50,10 @@ public class CommentToken implements Token {
      * @return comment data
      */
     public String getData () {
-        return data;
+        if (!(data instanceof String)) {
+            data = data.toString();
+        }
+        return (String) data;
     }
 
     /**
@@ -56,4 +62,15 @@ public class CommentToken implements Token {
     public String toString () {
         return "<!--" + getData() + "-->";
     }
+
+    /**
+     * @param out writer to write wellformed comment to
+     * @throws IOException when writing fails
+     */
+    public void write (Writer out)
+    throws IOException {
+        out.write("<!--");
+        CharSlice.write(out, data, 0, data.length());
+        out.write("-->");
+    }
 }
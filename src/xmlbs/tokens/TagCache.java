@@ -0,0 +1,341 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs.tokens;
+
+import xmlbs.DocumentStructure;
+
+/**
+ * Cache of parsed tags by raw tag text.  Documents repeat the same
+ * tags over and over, a tag found in the cache is copied instead of
+ * parsed again.  The least recently used tag is dropped when the
+ * cache is full.  Raw text is hashed and compared as given, a string
+ * key is only made for tags not found.  A cache is bound to a
+ * document structure and can be shared between threads, tags are
+ * parsed outside of the lock.
+ * <p>
+ * Found tags are copied because tags can be changed; the copy
+ * shares name, id and attributes with the cached tag until its
+ * attributes are asked for.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.1 $
+ */
+public class TagCache {
+    /** default maximum number of cached tags */
+    public static final int SIZE = 256;
+
+    /** document structure tags are parsed with */
+    private DocumentStructure ds;
+    /** maximum number of cached tags */
+    private final int size;
+    /** entries chained by hash code */
+    private final Entry[] table;
+    /** list of entries, least recently used after head */
+    private final Entry head = new Entry(null, 0, null);
+    /** number of cached tags */
+    private int count = 0;
+    /** number of tags found in cache */
+    private int hits = 0;
+    /** number of tags not found in cache */
+    private int misses = 0;
+
+    /**
+     * @param ds document structure to parse tags with
+     */
+    public TagCache (DocumentStructure ds) {
+        this(ds, SIZE);
+    }
+
+    /**
+     * @param ds document structure to parse tags with
+     * @param size maximum number of cached tags
+     */
+    public TagCache (DocumentStructure ds, int size) {
+        this.ds = ds;
+        this.size = size;
+        int n = 2;
+        while (n < size * 2) {
+            n <<= 1;
+        }
+        table = new Entry[n];
+        head.before = head.after = head;
+    }
+
+    /**
+     * Get tag for raw text.
+     * @param raw tag text without &lt; and &gt;
+     * @return new tag
+     * @see TagToken#TagToken(CharSequence, DocumentStructure)
+     */
+    public TagToken getTag (CharSequence raw) {
+        int hash = hash(raw);
+        TagToken tag;
+        synchronized (this) {
+            tag = use(find(raw, hash));
+        }
+        return tag != null ? new TagToken(tag) : parse(raw.toString(), hash);
+    }
+
+    /**
+     * Get tag for raw text in a buffer.  No string is made of the
+     * text when the tag is found.
+     * @param buf buffer holding tag text without &lt; and &gt;
+     * @param off offset of tag text in buffer
+     * @param len length of tag text
+     * @return new tag
+     */
+    public TagToken getTag (char[] buf, int off, int len) {
+        int hash = hash(buf, off, len);
+        TagToken tag;
+        synchronized (this) {
+            tag = use(find(buf, off, len, hash));
+        }
+        return tag != null ? new TagToken(tag) : parse(new String(buf, off, len), hash);
+    }
+
+    /**
+     * Count lookup and mark entry as most recently used.
+     * @param e entry found or <TT>null</TT>
+     * @return cached tag or <TT>null</TT> when not found
+     */
+    private TagToken use (Entry e) {
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        e.unlink();
+        e.link(head);
+        return e.tag;
+    }
+
+    /**
+     * Parse tag not found and add it to the cache.
+     * @param key raw tag text
+     * @param hash hash code of raw tag text
+     * @return new tag
+     */
+    private TagToken parse (String key, int hash) {
+        TagToken tag = new TagToken(key, ds);
+        // resolve id and attributes once for all copies before
+        // other threads can see the tag
+        tag.getId(ds);
+        TagToken copy = new TagToken(tag);
+        synchronized (this) {
+            if (find(key, hash) == null) {
+                put(new Entry(key, hash, tag));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @param raw raw tag text
+     * @param hash hash code of raw text
+     * @return entry for raw text or <TT>null</TT> when not cached
+     */
+    private Entry find (CharSequence raw, int hash) {
+        for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && equals(e.key, raw)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param buf buffer holding raw text
+     * @param off offset of raw text in buffer
+     * @param len length of raw text
+     * @param hash hash code of raw text
+     * @return entry for raw text or <TT>null</TT> when not cached
+     */
+    private Entry find (char[] buf, int off, int len, int hash) {
+        for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && equals(e.key, buf, off, len)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add entry, dropping the least recently used entry when full.
+     * @param e entry not in cache yet
+     */
+    private void put (Entry e) {
+        if (count == size) {
+            Entry eldest = head.after;
+            eldest.unlink();
+            int i = eldest.hash & (table.length - 1);
+            if (table[i] == eldest) {
+                table[i] = eldest.next;
+            } else {
+                Entry p = table[i];
+                while (p.next != eldest) {
+                    p = p.next;
+                }
+                p.next = eldest.next;
+            }
+            count--;
+        }
+        int i = e.hash & (table.length - 1);
+        e.next = table[i];
+        table[i] = e;
+        e.link(head);
+        count++;
+    }
+
+    /**
+     * @param raw text
+     * @return hash code of characters in text
+     */
+    private static int hash (CharSequence raw) {
+        int h = 0;
+        for (int i = 0, l = raw.length(); i < l; i++) {
+            h = 31 * h + raw.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param buf buffer holding text
+     * @param off offset of text in buffer
+     * @param len length of text
+     * @return hash code of characters in text, same as for a
+     * character sequence holding them
+     */
+    private static int hash (char[] buf, int off, int len) {
+        int h = 0;
+        for (int i = off, l = off + len; i < l; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param key cached raw text
+     * @param raw raw text to compare with
+     * @return true when both hold the same characters
+     */
+    private static boolean equals (String key, CharSequence raw) {
+        int l = key.length();
+        if (raw.length() != l) {
+            return false;
+        }
+        for (int i = 0; i < l; i++) {
+            if (key.charAt(i) != raw.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key cached raw text
+     * @param buf buffer holding raw text to compare with
+     * @param off offset of raw text in buffer
+     * @param len length of raw text
+     * @return true when both hold the same characters
+     */
+    private static boolean equals (String key, char[] buf, int off, int len) {
+        if (key.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (key.charAt(i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return document structure tags are parsed with
+     */
+    public DocumentStructure getDocumentStructure () {
+        return ds;
+    }
+
+    /**
+     * @return number of tags found in cache
+     */
+    public synchronized int getHits () {
+        return hits;
+    }
+
+    /**
+     * @return number of tags not found in cache
+     */
+    public synchronized int getMisses () {
+        return misses;
+    }
+
+    /**
+     * Cached tag, in a hash chain and in the list of entries in
+     * order of use.
+     */
+    private static final class Entry {
+        /** raw tag text */
+        final String key;
+        /** hash code of raw tag text */
+        final int hash;
+        /** parsed tag */
+        final TagToken tag;
+        /** next entry in hash chain */
+        Entry next;
+        /** previous entry in order of use */
+        Entry before;
+        /** next entry in order of use */
+        Entry after;
+
+        /**
+         * @param key raw tag text
+         * @param hash hash code of raw tag text
+         * @param tag parsed tag
+         */
+        Entry (String key, int hash, TagToken tag) {
+            this.key = key;
+            this.hash = hash;
+            this.tag = tag;
+        }
+
+        /**
+         * Insert before given entry.
+         * @param e entry to insert before
+         */
+        void link (Entry e) {
+            after = e;
+            before = e.before;
+            before.after = this;
+            e.before = this;
+        }
+
+        /**
+         * Remove from list in order of use.
+         */
+        void unlink () {
+            before.after = after;
+            after.before = before;
+        }
+    }
+}
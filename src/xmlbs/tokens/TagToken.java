@@ -21,15 +21,14 @@
 
 package xmlbs.tokens;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import xmlbs.DocumentStructure;
 
@@ -43,10 +42,19 @@ import xmlbs.DocumentStructure;
 public class TagToken implements Token {
     /** tag name */
     private String tagName;
-    /** map of tag attributes */
-    private Map attrs = new HashMap();
+    /** map of tag attributes, see {@link Attributes} */
+    private Map attrs = null;
+    /**
+     * raw tag text to parse attributes from, <TT>null</TT> when
+     * parsed
+     */
+    private CharSequence raw = null;
+    /** true when attributes are shared with a cached tag */
+    private boolean sharedAttrs = false;
     /** document structure this tag lives in */
     private DocumentStructure ds = null;
+    /** id of tag in document structure, <TT>-2</TT> when unknown */
+    private int id = -2;
 
     /** type of tag */
     private int type;
@@ -57,57 +65,52 @@ public class TagToken implements Token {
     /** empty tag type constant */
     public static final int EMPTY = 2;
 
-    /** regular expression to match close tags */
-    private static final Pattern closePat;
-    /** regular expression to match empty tags */
-    private static final Pattern emptyPat;
-    /** regular expression to match tag name */
-    private static final Pattern namePat;
-    /** regular expression to match attribute name */
-    private static final Pattern attPat;
-    /** regular expression to match single-quoted attribute value */
-    private static final Pattern valPat1;
-    /** regular expression to match double-quoted attribute value */
-    private static final Pattern valPat2;
-    /** regular expression to match unquoted attribute value */
-    private static final Pattern valPat3;
-
-    static {
-        try {
-            closePat = Pattern.compile("^\\s*/");
-            emptyPat = Pattern.compile("/\\s*$");
-            namePat = Pattern.compile("([a-zA-Z_:][a-zA-Z0-9._:-]*)\\s*");
-            attPat = Pattern.compile("\\s([a-zA-Z_:][a-zA-Z0-9]*)\\s*=");
-            valPat1 = Pattern.compile("^\\s*=\\s*'([^']*)'");
-            valPat2 = Pattern.compile("^\\s*=\\s*\"([^\"]*)\"");
-            valPat3 = Pattern.compile("^\\s*=\\s*([^\\s]*)");
-        } catch (PatternSyntaxException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
     /**
+     * Parse tag type and name.  The tag type is determined by a
+     * leading or trailing / character, the tag name is the first
+     * name found.  Attributes are parsed when first asked for, values
+     * may be single-quoted, double-quoted or unquoted.
      * @param raw tag text without &lt; and &gt;
+     * @param ds document structure
      */
-    public TagToken (String raw, DocumentStructure ds) {
+    public TagToken (CharSequence raw, DocumentStructure ds) {
 	this.ds = ds;
+        int len = raw.length();
 
         // determine tag type
         {
-            if (closePat.matcher(raw).find()) {
+            int p = 0;
+            while (p < len && isSpace(raw.charAt(p))) {
+                p++;
+            }
+            if (p < len && raw.charAt(p) == '/') {
                 type = CLOSE;
-            } else if (emptyPat.matcher(raw).find()) {
-                type = EMPTY;
             } else {
-                type = OPEN;
+                int q = len;
+                if (q > 0 && isFinalLineTerminator(raw.charAt(q - 1))) {
+                    q--;
+                }
+                while (q > 0 && isSpace(raw.charAt(q - 1))) {
+                    q--;
+                }
+                type = q > 0 && raw.charAt(q - 1) == '/' ? EMPTY : OPEN;
 	    }
         }
 
         // determine tag name
         {
-            Matcher ma = namePat.matcher(raw);
-            ma.find(); // TODO assert a match is found
-            tagName = ma.group(1);
+            int p = 0;
+            while (p < len && !isNameStart(raw.charAt(p))) {
+                p++;
+            }
+            if (p == len) {
+                throw new IllegalStateException("no tag name in: " + raw);
+            }
+            int q = p + 1;
+            while (q < len && isNameChar(raw.charAt(q))) {
+                q++;
+            }
+            tagName = raw.subSequence(p, q).toString();
 
 	    if (ds.getIgnoreCase()) {
 		String t = ds.getTagName(tagName);
@@ -115,38 +118,124 @@ public class TagToken implements Token {
 	    }
         }
 
-        // collect attributes
-        {
-            int pos = 0;
-            for (Matcher ma = attPat.matcher(raw); ma.find(pos);) {
-                String attr = ma.group(1);
-                pos = ma.end(1);
-                String valStr = raw.substring(pos);
-
-                String val = null;
-                Matcher valMa = null;
-                Matcher valMa1 = valPat1.matcher(valStr);
-                Matcher valMa2 = valPat2.matcher(valStr);
-                Matcher valMa3 = valPat3.matcher(valStr);
-                if (valMa1.find()) {
-                    valMa = valMa1;
-                } else if (valMa2.find()) {
-                    valMa = valMa2;
-                } else if (valMa3.find()) {
-                    valMa = valMa3;
-                } else {
-                    break;
-		}
-                val = valMa.group(1);
-                pos += valMa.end(1);
-
-		if (ds.getIgnoreCase()) {
-		    String t = ds.getTagAttribute(tagName, attr);
-		    attr = t == null ? attr : t;
-		}
-                attrs.put(attr, val);
+        // attributes are parsed when asked for
+        this.raw = raw;
+    }
+
+    /**
+     * Parse attributes from raw tag text.  Attributes are name /
+     * value pairs preceded by white space.
+     * @param filter document structure to keep known attributes
+     * for, <TT>null</TT> to keep all
+     */
+    private void parseAttributes (DocumentStructure filter) {
+        CharSequence raw = this.raw;
+        int len = raw.length();
+        this.raw = null;
+        Attributes attrs = null;
+        for (int p = 0; p + 1 < len; p++) {
+            // white space and attribute name followed by =
+            if (!isSpace(raw.charAt(p)) || !isNameStart(raw.charAt(p + 1))) {
+                continue;
+            }
+            int nameEnd = p + 2;
+            while (nameEnd < len && isAttributeChar(raw.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            int q = nameEnd;
+            while (q < len && isSpace(raw.charAt(q))) {
+                q++;
+            }
+            if (q == len || raw.charAt(q) != '=') {
+                continue;
+            }
+            String attr = raw.subSequence(p + 1, nameEnd).toString();
+
+            // value
+            q++;
+            while (q < len && isSpace(raw.charAt(q))) {
+                q++;
+            }
+            int valStart = q;
+            int valEnd = -1;
+            if (q < len && (raw.charAt(q) == '\'' || raw.charAt(q) == '"')) {
+                char quote = raw.charAt(q);
+                for (int i = q + 1; i < len; i++) {
+                    if (raw.charAt(i) == quote) {
+                        valStart = q + 1;
+                        valEnd = i;
+                        break;
+                    }
+                }
+            }
+            if (valEnd == -1) {
+                // unquoted or unmatched quote
+                valEnd = q;
+                while (valEnd < len && !isSpace(raw.charAt(valEnd))) {
+                    valEnd++;
+                }
+            }
+            String val = raw.subSequence(valStart, valEnd).toString();
+            p = valEnd - 1;
+
+	    if (ds.getIgnoreCase()) {
+		String t = ds.getTagAttribute(tagName, attr);
+		attr = t == null ? attr : t;
+	    }
+            if (filter != null && !filter.isKnownAttribute(this, attr)) {
+                continue;
+            }
+            if (attrs == null) {
+                attrs = new Attributes();
             }
+            attrs.put(attr, val);
         }
+        this.attrs = attrs == null ? Attributes.EMPTY : attrs;
+    }
+
+    /**
+     * @param c character
+     * @return true for white space characters
+     */
+    private static boolean isSpace (char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+                || c == '\f' || c == '\r';
+    }
+
+    /**
+     * @param c character
+     * @return true for line terminators not considered white space
+     */
+    private static boolean isFinalLineTerminator (char c) {
+        return c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * @param c character
+     * @return true for characters starting a name
+     */
+    private static boolean isNameStart (char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || c == '_' || c == ':';
+    }
+
+    /**
+     * @param c character
+     * @return true for characters allowed in a tag name
+     */
+    private static boolean isNameChar (char c) {
+        return isAttributeChar(c) || c == '.' || c == '_' || c == ':'
+                || c == '-';
+    }
+
+    /**
+     * @param c character
+     * @return true for characters allowed in an attribute name after
+     * the first
+     */
+    private static boolean isAttributeChar (char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
     }
 
     /**
@@ -163,19 +252,50 @@ public class TagToken implements Token {
         this.type = type;
     }
 
+    /**
+     * @param tagName tag name
+     * @param attrs map of attributes
+     * @param type type of tag
+     * @param ds document structure this tag lives in
+     * @see TokenStore#get(int)
+     */
+    TagToken (String tagName, Map attrs, int type, DocumentStructure ds) {
+        this(tagName, attrs, type);
+        this.ds = ds;
+    }
+
+    /**
+     * Copy cached tag.  The attributes are shared until asked for.
+     * @param tag parsed tag to copy
+     * @see TagCache
+     */
+    TagToken (TagToken tag) {
+        this.tagName = tag.tagName;
+        this.attrs = tag.attributes();
+        this.ds = tag.ds;
+        this.id = tag.id;
+        this.type = tag.type;
+        this.sharedAttrs = attrs != Attributes.EMPTY;
+    }
+
     /**
      * @return empty version of this tag
      */
     public TagToken emptyTag () {
-        TagToken tok = new TagToken(tagName, attrs, EMPTY);
+        TagToken tok = new TagToken(tagName, getAttributes(), EMPTY);
         return tok;
     }
 
     /**
-     * @return closing version of this tag
+     * @return closing version of this tag, shared by the document
+     * structure if known
+     * @see DocumentStructure#getCloseTag(String)
      */
     public TagToken closeTag () {
-        TagToken tok = new TagToken(tagName, attrs, CLOSE);
+        if (ds != null) {
+            return ds.getCloseTag(tagName);
+        }
+        TagToken tok = new TagToken(tagName, getAttributes(), CLOSE);
         return tok;
     }
 
@@ -187,12 +307,100 @@ public class TagToken implements Token {
     }
 
     /**
-     * @return map of tag attributes
+     * Get tag id.  The id is remembered when asked for with the
+     * document structure this tag lives in.
+     * @param ds document structure
+     * @return tag id
+     * @see DocumentStructure#getTagId(String)
+     */
+    public int getId (DocumentStructure ds) {
+        if (ds != this.ds) {
+            return ds.getTagId(tagName);
+        }
+        if (id == -2) {
+            id = ds.getTagId(tagName);
+        }
+        return id;
+    }
+
+    /**
+     * @return map of tag attributes, the unmodifiable
+     * {@link Attributes#EMPTY} for close tags without attributes
+     * which may be shared by a document structure
+     * @see DocumentStructure#getCloseTag(String)
      */
     public Map getAttributes () {
+        Map attrs = attributes();
+        if (sharedAttrs) {
+            // copy on first possible modification
+            this.attrs = attrs = new Attributes((Attributes) attrs);
+            sharedAttrs = false;
+        } else if (attrs == Attributes.EMPTY && type != CLOSE) {
+            // shared empty attributes can not be modified
+            this.attrs = attrs = new Attributes();
+        }
+        return attrs;
+    }
+
+    /**
+     * @return map of tag attributes, possibly shared
+     */
+    private Map attributes () {
+        return attributes(null);
+    }
+
+    /**
+     * @param filter document structure to keep known attributes for
+     * when not parsed yet, <TT>null</TT> to keep all
+     * @return map of tag attributes, possibly shared
+     * @see TokenStore
+     */
+    Map attributes (DocumentStructure filter) {
+        if (raw != null) {
+            parseAttributes(filter);
+        }
         return attrs;
     }
 
+    /**
+     * Retain only attributes known by document structure.  When not
+     * parsed yet, unknown attributes are skipped while parsing and
+     * never stored.
+     * @param ds document structure
+     * @see DocumentStructure#isKnownAttribute(TagToken, String)
+     */
+    public void retainAttributes (DocumentStructure ds) {
+        if (raw != null) {
+            parseAttributes(ds);
+            return;
+        }
+        if (attrs.isEmpty()) {
+            return;
+        }
+        if (sharedAttrs) {
+            // copy known attributes only
+            Attributes shared = (Attributes) attrs;
+            Attributes copy = null;
+            for (int i = 0; i < shared.size(); i++) {
+                String attr = shared.getName(i);
+                if (ds.isKnownAttribute(this, attr)) {
+                    if (copy == null) {
+                        copy = new Attributes();
+                    }
+                    copy.put(attr, shared.getValue(i));
+                }
+            }
+            attrs = copy == null ? Attributes.EMPTY : copy;
+            sharedAttrs = false;
+            return;
+        }
+        for (Iterator it = attrs.keySet().iterator(); it.hasNext();) {
+            if (!ds.isKnownAttribute(this, (String) it.next())) {
+                it.remove();
+            }
+        }
+    }
+
     /**
      * @return true if this is a open tag
      * @see #OPEN
@@ -229,43 +437,96 @@ public class TagToken implements Token {
      * @return proper string representation of this tag
      */
     public String toString () {
-        StringBuffer sb = new StringBuffer();
+        return toString(type);
+    }
+
+    /**
+     * @param type type of tag to write this tag as
+     * @return proper string representation of this tag as given type
+     * @see #OPEN
+     * @see #CLOSE
+     * @see #EMPTY
+     */
+    public String toString (int type) {
+        StringWriter out = new StringWriter();
+        try {
+            write(out, type);
+        } catch (IOException ex) {
+            // can't happen writing to a string
+            throw new RuntimeException(ex);
+        }
+        return out.toString();
+    }
 
-        sb.append('<');
+    /**
+     * @param out writer to write proper representation of this tag to
+     * @throws IOException when writing fails
+     */
+    public void write (Writer out)
+    throws IOException {
+        write(out, type);
+    }
+
+    /**
+     * @param out writer to write proper representation of this tag to
+     * @param type type of tag to write this tag as
+     * @throws IOException when writing fails
+     * @see #OPEN
+     * @see #CLOSE
+     * @see #EMPTY
+     */
+    public void write (Writer out, int type)
+    throws IOException {
+        out.write('<');
 
         if (type == CLOSE) {
-            sb.append('/');
-            sb.append(tagName);
-            sb.append('>');
+            out.write('/');
+            out.write(tagName);
+            out.write('>');
 
-            return sb.toString();
+            return;
         }
 
         // else OPEN or EMPTY
-        sb.append(tagName);
-
-        if (attrs != null) {
+        out.write(tagName);
+
+        Map attrs = attributes();
+        if (attrs instanceof Attributes) {
+            // already sorted
+            Attributes a = (Attributes) attrs;
+            for (int i = 0, n = a.size(); i < n; i++) {
+                attribute(out, a.getName(i), a.getValue(i));
+            }
+        } else if (attrs != null) {
             List l = new ArrayList(attrs.keySet());
             Collections.sort(l);
             Iterator it = l.iterator();
             while (it.hasNext()) {
                 String attr = (String) it.next();
-                String val = (String) attrs.get(attr);
-
-                sb.append(' ');
-                sb.append(attr);
-                sb.append('=');
-                sb.append('"');
-                sb.append(TextToken.fixText(val, ds));
-                sb.append('"');
+                attribute(out, attr, (String) attrs.get(attr));
             }
         }
 
         if (type == EMPTY) {
-            sb.append('/');
+            out.write('/');
 	}
-        sb.append('>');
+        out.write('>');
+    }
 
-        return sb.toString();
+    /**
+     * Write attribute.
+     * @param out writer to write to
+     * @param attr attribute name
+     * @param val attribute value
+     * @throws IOException when writing fails
+     */
+    private void attribute (Writer out, String attr, String val)
+    throws IOException {
+        out.write(' ');
+        out.write(attr);
+        out.write('=');
+        out.write('"');
+        TextToken.fixText(val, ds, out, true);
+        out.write('"');
     }
 }
@@ -21,9 +21,9 @@
 
 package xmlbs.tokens;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 import xmlbs.DocumentStructure;
 
@@ -37,27 +37,48 @@ import xmlbs.DocumentStructure;
  * @version $Revision: 1.1 $
  */
 public class TextToken implements Token {
-    /** processed text */
-    private String txt;
+    /** processed text, <TT>null</TT> when not processed yet */
+    private String txt = null;
     /** unprocessed text */
-    private String data;
+    private CharSequence data;
     /** document structure this token lives in */
     private DocumentStructure ds = null;
+    /** true when text has no characters to escape */
+    private boolean clean = false;
 
     /**
      * @param data create text block token from given text
      */
-    public TextToken (String data, DocumentStructure ds) {
+    public TextToken (CharSequence data, DocumentStructure ds) {
         this.data = data;
 	this.ds = ds;
-        this.txt = fixText(data, ds);
+    }
+
+    /**
+     * @param data create text block token from given text
+     * @param clean true when text has no &lt;, &gt;, &amp;, &quot;
+     * or ' characters, it is written without escaping
+     */
+    public TextToken (CharSequence data, DocumentStructure ds, boolean clean) {
+        this(data, ds);
+	this.clean = clean;
     }
 
     /**
      * @return unprocessed text data
      */
     public String getData () {
-        return data;
+	if (!(data instanceof String)) {
+	    data = data.toString();
+	}
+        return (String) data;
+    }
+
+    /**
+     * @return unprocessed text data, not turned into a string
+     */
+    CharSequence data () {
+	return data;
     }
 
     /**
@@ -65,105 +86,317 @@ public class TextToken implements Token {
      */
     public void setData (String data) {
 	this.data = data;
-	this.txt = fixText(data, ds);
+	this.txt = null;
+	this.clean = false;
+    }
+
+    /**
+     * @param data text for this block
+     * @param clean true when text has no characters to escape
+     */
+    void setData (String data, boolean clean) {
+	setData(data);
+	this.clean = clean;
+    }
+
+    /**
+     * @return true when text is written without escaping
+     */
+    public boolean isClean () {
+	return clean;
     }
 
     /**
      * @return true when block only contains whitespace
      */
     public boolean isWhiteSpace () {
-	return data.trim().length() == 0;
+	for (int i = 0, l = data.length(); i < l; i++) {
+	    if (data.charAt(i) > ' ') {
+		return false;
+	    }
+	}
+	return true;
     }
 
     /**
      * @return processed text data
      */
     public String toString () {
+	if (txt == null) {
+	    txt = clean ? getData() : fixText(data, ds);
+	}
         return txt;
     }
 
-    /** regular expression to recognize entity references */
-    private static final Pattern entityRefPat;
-    /** regular expression to recognize character references */
-    private static final Pattern charRefPat;
+    /**
+     * Write processed text data.  The text is escaped while written.
+     * @param out writer to write to
+     * @throws IOException when writing fails
+     */
+    public void write (Writer out)
+    throws IOException {
+	if (txt != null) {
+	    out.write(txt);
+	} else if (clean) {
+	    CharSlice.write(out, data, 0, data.length());
+	} else {
+	    fixText(data, ds, out);
+	}
+    }
 
-    static {
+    /**
+     * Xml escape text while preserving existing entities.
+     * @param in text to process
+     * @return processing result
+     */
+    public static final String fixText (CharSequence in, DocumentStructure ds) {
+        StringWriter out = new StringWriter(in.length() + 16);
         try {
-            entityRefPat = Pattern.compile("^&([a-zA-Z_:][a-zA-Z0-9._:-]*);");
-            charRefPat = Pattern.compile("^&#([0-9]+)|(x[0-9a-fA-F]+);");
-        } catch (PatternSyntaxException ex) {
+            fixText(in, ds, out);
+        } catch (IOException ex) {
+            // can't happen writing to a string
             throw new RuntimeException(ex);
         }
+        return out.toString();
     }
 
     /**
-     * Xml escape text while preserving existing entities.
+     * Xml escape text while preserving existing entities.  Entity
+     * references must be known by the document structure, character
+     * references are passed as is.  Text which needs no escaping is
+     * written in runs.
      * @param in text to process
-     * @return processing result
+     * @param ds document structure to lookup entities in
+     * @param out writer to write result to
+     * @throws IOException when writing fails
+     */
+    public static final void fixText (CharSequence in, DocumentStructure ds,
+            Writer out)
+    throws IOException {
+        fixText(in, ds, out, false);
+    }
+
+    /**
+     * Xml escape text or attribute value while preserving existing
+     * entities.  Entity references without semi-colon are only kept
+     * in text, when the whole name is known and not followed by a
+     * <TT>=</TT> character or a <TT>;</TT> after white space.  This
+     * is decided for every reference on its own, semi-colons further
+     * on in the text do not matter.
+     * @param in text to process
+     * @param ds document structure to lookup entities in
+     * @param out writer to write result to
+     * @param attr true when text is an attribute value
+     * @throws IOException when writing fails
      */
-    public static final String fixText (String in, DocumentStructure ds) {
-        StringBuffer out = new StringBuffer();
-        // TODO speedup by using char array insteadof string
-        for (int i = 0, l = in.length(); i < l; i++) {
+    static final void fixText (CharSequence in, DocumentStructure ds,
+            Writer out, boolean attr)
+    throws IOException {
+        // start of next hexadecimal character reference, -1 when not
+        // searched yet or none found searching from hexFrom
+        int hex = -1;
+        int hexFrom = Integer.MAX_VALUE;
+        int semi = -1;
+        // start of text not written yet
+        int run = 0;
+        int l = in.length();
+        for (int i = 0; i < l; i++) {
             char c = in.charAt(i);
+            String rep;
             switch (c) {
             case '<':
-                out.append("&lt;");
+                rep = "&lt;";
                 break;
             case '>':
-                out.append("&gt;");
+                rep = "&gt;";
                 break;
             case '"':
-                out.append("&#034;");
+                rep = "&#034;";
                 break;
             case '\'':
-                out.append("&#039;");
+                rep = "&#039;";
                 break;
             case '&':
-                int j = in.indexOf(';', i);
-                if (j != -1) {
-                    String s = in.substring(i);
-                    Matcher entityRefMa = entityRefPat.matcher(s);
-                    Matcher charRefMa = charRefPat.matcher(s);
-                    if (entityRefMa.find()) {
-			String ent = entityRefMa.group(1);
-			if (ent != null) {
-			    ent = ds.getEntityRef(ent);
-			    if (ent != null) {
-				out.append('&');
-				out.append(ds.getEntityRef(ent));
-				out.append(';');
-				i = j;
-			    } else {
-				out.append("&amp;");
-			    }
-			} else {
-			    out.append("&amp;");
-			}
-		    } else if (charRefMa.find()) {
-			String ent1 = charRefMa.group(1);
-			String ent2 = charRefMa.group(2);
-			if (ent1 != null || ent2 != null) {
-			    out.append("&#");
-			    out.append(ent1 != null ? ent1 : ent2);
-			    out.append(';');
-			    i = j;
-			} else {
-			    out.append("&amp;");
-			}
-                    } else {
-                        out.append("&amp;");
+                rep = "&amp;";
+                // position of next ; character
+                if (semi < i) {
+                    semi = indexOf(in, ';', i + 1);
+                    if (semi == -1) {
+                        semi = l;
+                    }
+                }
+                int n = nameEnd(in, i + 1, l);
+                int m = n;
+                while (m < l && in.charAt(m) <= ' ') {
+                    m++;
+                }
+                if (!attr && n > i + 1 && (n == l || (in.charAt(n) != '='
+                        && (m == l || in.charAt(m) != ';')))) {
+                    // entity reference with missing semi-colon, whole
+                    // name only, not like a query string parameter and
+                    // not like a misplaced semi-colon
+                    int len = n - i - 1;
+                    if (ds.matchEntityRef(in, i + 1, n) == len) {
+                        CharSlice.write(out, in, run, i);
+                        i = entityRef(in, i, len, ds, out);
+                        run = i + 1;
+                        continue;
                     }
-                } else {
-		    // TODO try to match entity ref with missing semi-colon
-                    out.append("&amp;");
+                }
+                if (semi == l) {
+                    break;
+                }
+
+                // entity reference
+                if (n > i + 1 && n < l && in.charAt(n) == ';') {
+                    String ent = ds.getEntityRef(in.subSequence(i + 1, n).toString());
+                    if (ent != null) {
+                        CharSlice.write(out, in, run, i);
+                        out.write('&');
+                        out.write(ent);
+                        out.write(';');
+                        i = semi;
+                        run = i + 1;
+                        continue;
+                    }
+                    break;
+                }
+
+                // decimal character reference, ; not required
+                if (i + 1 < l && in.charAt(i + 1) == '#') {
+                    int d = i + 2;
+                    while (d < l && in.charAt(d) >= '0' && in.charAt(d) <= '9') {
+                        d++;
+                    }
+                    if (d > i + 2) {
+                        CharSlice.write(out, in, run, i);
+                        out.write("&#");
+                        CharSlice.write(out, in, i + 2, d);
+                        out.write(';');
+                        i = semi;
+                        run = i + 1;
+                        continue;
+                    }
+                }
+
+                // hexadecimal character reference anywhere after &
+                if (hexFrom > i + 1 || (hex != -1 && hex < i + 1)) {
+                    hexFrom = i + 1;
+                    hex = hexRef(in, hexFrom, l);
+                }
+                if (hex != -1) {
+                    CharSlice.write(out, in, run, i);
+                    out.write("&#");
+                    CharSlice.write(out, in, hex, indexOf(in, ';', hex));
+                    out.write(';');
+                    i = semi;
+                    run = i + 1;
+                    continue;
                 }
                 break;
             default:
-                out.append(c);
+                continue;
             }
+            CharSlice.write(out, in, run, i);
+            out.write(rep);
+            run = i + 1;
         }
+        CharSlice.write(out, in, run, l);
+    }
 
-        return out.toString();
+    /**
+     * Write entity reference matched without semi-colon.
+     * @param in text holding reference
+     * @param amp position of &amp; character
+     * @param len length of entity name
+     * @param ds document structure to lookup entity in
+     * @param out writer to write reference to
+     * @return position of last character of name
+     * @throws IOException when writing fails
+     */
+    private static int entityRef (CharSequence in, int amp, int len,
+            DocumentStructure ds, Writer out)
+    throws IOException {
+        out.write('&');
+        out.write(ds.getEntityRef(in.subSequence(amp + 1, amp + 1 + len).toString()));
+        out.write(';');
+        return amp + len;
+    }
+
+    /**
+     * @param in text to search
+     * @param c character to find
+     * @param from position to start at
+     * @return position of character or -1 when not found
+     */
+    private static int indexOf (CharSequence in, char c, int from) {
+        for (int i = from, l = in.length(); i < l; i++) {
+            if (in.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param in text to scan
+     * @param from start of name
+     * @param l length of text
+     * @return end of name starting at given position, equals
+     * <TT>from</TT> when no name starts there
+     */
+    private static int nameEnd (CharSequence in, int from, int l) {
+        if (from == l) {
+            return from;
+        }
+        char c = in.charAt(from);
+        if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || c == '_' || c == ':')) {
+            return from;
+        }
+        int i = from + 1;
+        for (; i < l; i++) {
+            c = in.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '_'
+                    || c == ':' || c == '-')) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Find hexadecimal character reference like <TT>x1F;</TT>.
+     * @param in text to search
+     * @param from position to start at
+     * @param l length of text
+     * @return start of reference or -1 when not found
+     */
+    private static int hexRef (CharSequence in, int from, int l) {
+        for (int i = from; i < l; i++) {
+            if (in.charAt(i) != 'x') {
+                continue;
+            }
+            int j = i + 1;
+            while (j < l && isHexDigit(in.charAt(j))) {
+                j++;
+            }
+            if (j > i + 1 && j < l && in.charAt(j) == ';') {
+                return i;
+            }
+            // no x in hex digits, continue after them
+            i = j - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param c character
+     * @return true for hexadecimal digits
+     */
+    private static boolean isHexDigit (char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')
+                || (c >= 'A' && c <= 'F');
     }
 }
@@ -21,6 +21,9 @@
 
 package xmlbs.tokens;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Interface for tokens created by tokenizer.
  *
@@ -33,4 +36,12 @@ public interface Token {
      * @return wellformed representation of token
      */
     String toString ();
+
+    /**
+     * Write wellformed representation of token.
+     * @param out writer to write to
+     * @throws IOException when writing fails
+     */
+    void write (Writer out)
+    throws IOException;
 }
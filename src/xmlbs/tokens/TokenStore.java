@@ -0,0 +1,559 @@
+/*
+ * xmlbs
+ *
+ * Copyright (C) 2002  R.W. van 't Veer
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+
+package xmlbs.tokens;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import xmlbs.DocumentStructure;
+
+/**
+ * List of tokens kept in columns instead of token objects.  Every
+ * token has a kind, a name id, an offset and a length.  Text, comment
+ * and CDATA data is copied into one character buffer, offset and
+ * length point into it.  For tags the name id refers to a table of
+ * names and offset and length select a range of the attribute table,
+ * which holds attribute name ids and offsets and lengths of values in
+ * the character buffer.  Tokens of other kinds are kept as objects.
+ * <p>
+ * Attributes unknown by the document structure are not stored.
+ * Token objects are only created when asked for with {@link
+ * #get(int)}, writing works on the columns.
+ *
+ * @author R.W. van 't Veer
+ * @version $Revision: 1.2 $
+ */
+public final class TokenStore {
+    /** text token kind */
+    public static final byte TEXT = 0;
+    /** open tag kind */
+    public static final byte OPEN_TAG = 1;
+    /** close tag kind */
+    public static final byte CLOSE_TAG = 2;
+    /** empty tag kind, also for open tags to write as empty tag */
+    public static final byte EMPTY_TAG = 3;
+    /** comment token kind */
+    public static final byte COMMENT = 4;
+    /** CDATA token kind */
+    public static final byte CDATA = 5;
+    /** kind of other tokens */
+    public static final byte OTHER = 6;
+
+    /** document structure tokens live in */
+    private final DocumentStructure ds;
+
+    /** kinds of tokens */
+    private byte[] kinds;
+    /** name ids of tags, for text 1 when written without escaping */
+    private int[] names;
+    /**
+     * offsets of data in chars, of first attribute of tags in
+     * attribute table or of other tokens in others
+     */
+    private int[] offsets;
+    /** lengths of data or number of attributes of tags */
+    private int[] lengths;
+    /** number of tokens in store */
+    private int size = 0;
+
+    /** text, comment, CDATA and attribute value characters */
+    private char[] chars;
+    /** number of characters used */
+    private int charCount = 0;
+
+    /** name ids of attributes */
+    private int[] attrNames;
+    /** offsets of attribute values in chars */
+    private int[] attrOffsets;
+    /** lengths of attribute values */
+    private int[] attrLengths;
+    /** number of attributes in table */
+    private int attrCount = 0;
+
+    /** tag and attribute names by id */
+    private String[] nameTable = new String[16];
+    /** number of names */
+    private int nameCount = 0;
+    /** hash of names, slots hold id + 1 or 0 when free */
+    private int[] nameSlots = new int[32];
+
+    /** tokens of other kinds */
+    private Token[] others = new Token[0];
+    /** number of other tokens */
+    private int otherCount = 0;
+
+    /**
+     * Construct empty store.
+     * @param ds document structure tokens live in
+     */
+    public TokenStore (DocumentStructure ds) {
+        this(ds, 256);
+    }
+
+    /**
+     * Construct empty store.
+     * @param ds document structure tokens live in
+     * @param capacity initial capacity
+     */
+    public TokenStore (DocumentStructure ds, int capacity) {
+        this.ds = ds;
+        kinds = new byte[capacity];
+        names = new int[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        chars = new char[capacity * 16];
+        attrNames = new int[capacity];
+        attrOffsets = new int[capacity];
+        attrLengths = new int[capacity];
+    }
+
+    /**
+     * @param tok token to determine kind of
+     * @return kind of token
+     */
+    public static byte kindOf (Token tok) {
+        if (tok instanceof TextToken) {
+            return TEXT;
+        } else if (tok instanceof TagToken) {
+            TagToken tag = (TagToken) tok;
+            return tag.isOpenTag() ? OPEN_TAG
+                    : tag.isCloseTag() ? CLOSE_TAG : EMPTY_TAG;
+        } else if (tok instanceof CommentToken) {
+            return COMMENT;
+        } else if (tok instanceof CDATAToken) {
+            return CDATA;
+        }
+        return OTHER;
+    }
+
+    /**
+     * Append token.
+     * @param tok token to add
+     */
+    public void add (Token tok) {
+        add(kindOf(tok), tok);
+    }
+
+    /**
+     * Append token of known kind.  Only the name of tags added as
+     * {@link #CLOSE_TAG} is kept, open tags can be added as close tag
+     * directly.
+     * @param kind kind of token
+     * @param tok token to add
+     */
+    public void add (byte kind, Token tok) {
+        if (size == kinds.length) {
+            int n = size * 2 + 1;
+            kinds = (byte[]) copy(kinds, new byte[n], size);
+            names = (int[]) copy(names, new int[n], size);
+            offsets = (int[]) copy(offsets, new int[n], size);
+            lengths = (int[]) copy(lengths, new int[n], size);
+        }
+        store(size++, kind, tok);
+    }
+
+    /**
+     * Copy token into columns.
+     * @param i index of token
+     * @param kind kind of token
+     * @param tok token
+     */
+    private void store (int i, byte kind, Token tok) {
+        kinds[i] = kind;
+        names[i] = -1;
+        switch (kind) {
+        case TEXT:
+            TextToken txt = (TextToken) tok;
+            names[i] = txt.isClean() ? 1 : 0;
+            lengths[i] = txt.data().length();
+            offsets[i] = append(txt.data());
+            break;
+        case OPEN_TAG:
+        case CLOSE_TAG:
+        case EMPTY_TAG:
+            TagToken tag = (TagToken) tok;
+            names[i] = nameId(tag.getName());
+            offsets[i] = attrCount;
+            lengths[i] = 0;
+            if (kind != CLOSE_TAG) {
+                attributes(i, tag);
+            }
+            break;
+        case COMMENT:
+        case CDATA:
+            String data = kind == COMMENT ? ((CommentToken) tok).getData()
+                    : ((CDATAToken) tok).getData();
+            lengths[i] = data.length();
+            offsets[i] = append(data);
+            break;
+        default:
+            if (otherCount == others.length) {
+                others = (Token[]) copy(others, new Token[otherCount * 2 + 1],
+                        otherCount);
+            }
+            offsets[i] = otherCount;
+            lengths[i] = 0;
+            others[otherCount++] = tok;
+        }
+    }
+
+    /**
+     * Copy known attributes of tag into attribute table.  Attributes
+     * not parsed yet are parsed skipping unknown attributes.
+     * @param i index of tag
+     * @param tag tag holding attributes
+     */
+    private void attributes (int i, TagToken tag) {
+        Map attrs = tag.attributes(ds);
+        if (attrs instanceof Attributes) {
+            // already sorted
+            Attributes a = (Attributes) attrs;
+            for (int j = 0, n = a.size(); j < n; j++) {
+                attribute(i, tag, a.getName(j), a.getValue(j));
+            }
+        } else if (attrs != null) {
+            List l = new ArrayList(attrs.keySet());
+            Collections.sort(l);
+            for (Iterator it = l.iterator(); it.hasNext();) {
+                String attr = (String) it.next();
+                attribute(i, tag, attr, (String) attrs.get(attr));
+            }
+        }
+    }
+
+    /**
+     * Add attribute to attribute table when known.
+     * @param i index of tag
+     * @param tag tag holding attribute
+     * @param attr attribute name
+     * @param val attribute value
+     */
+    private void attribute (int i, TagToken tag, String attr, String val) {
+        if (!ds.isKnownAttribute(tag, attr)) {
+            return;
+        }
+        if (attrCount == attrNames.length) {
+            int n = attrCount * 2 + 1;
+            attrNames = (int[]) copy(attrNames, new int[n], attrCount);
+            attrOffsets = (int[]) copy(attrOffsets, new int[n], attrCount);
+            attrLengths = (int[]) copy(attrLengths, new int[n], attrCount);
+        }
+        attrNames[attrCount] = nameId(attr);
+        attrLengths[attrCount] = val.length();
+        attrOffsets[attrCount] = append(val);
+        attrCount++;
+        lengths[i]++;
+    }
+
+    /**
+     * @return number of tokens in store
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     * @param i index of token
+     * @return kind of token
+     */
+    public byte getKind (int i) {
+        check(i);
+        return kinds[i];
+    }
+
+    /**
+     * Create token object.  Open tags stored as {@link #EMPTY_TAG}
+     * are returned as empty tag, close tags are shared by the
+     * document structure.
+     * @param i index of token
+     * @return new token
+     * @see DocumentStructure#getCloseTag(String)
+     */
+    public Token get (int i) {
+        check(i);
+        switch (kinds[i]) {
+        case TEXT:
+            return new TextToken(new String(chars, offsets[i], lengths[i]),
+                    ds, names[i] == 1);
+        case OPEN_TAG:
+        case EMPTY_TAG:
+            Attributes attrs = new Attributes(lengths[i]);
+            for (int j = offsets[i], n = j + lengths[i]; j < n; j++) {
+                attrs.put(nameTable[attrNames[j]],
+                        new String(chars, attrOffsets[j], attrLengths[j]));
+            }
+            return new TagToken(nameTable[names[i]], attrs,
+                    kinds[i] == OPEN_TAG ? TagToken.OPEN : TagToken.EMPTY, ds);
+        case CLOSE_TAG:
+            return ds.getCloseTag(nameTable[names[i]]);
+        case COMMENT:
+            return new CommentToken(new String(chars, offsets[i], lengths[i]));
+        case CDATA:
+            return new CDATAToken(new String(chars, offsets[i], lengths[i]));
+        default:
+            return others[offsets[i]];
+        }
+    }
+
+    /**
+     * @param i index of token
+     * @return string representation of token, open tags stored as
+     * {@link #EMPTY_TAG} are written as empty tag
+     */
+    public String toString (int i) {
+        StringWriter out = new StringWriter();
+        try {
+            write(i, out);
+        } catch (IOException ex) {
+            // can't happen writing to a string
+            throw new RuntimeException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write token, open tags stored as {@link #EMPTY_TAG} are written
+     * as empty tag.
+     * @param i index of token
+     * @param out writer to write to
+     * @throws IOException when writing fails
+     */
+    public void write (int i, Writer out)
+    throws IOException {
+        check(i);
+        switch (kinds[i]) {
+        case TEXT:
+            if (names[i] == 1) {
+                out.write(chars, offsets[i], lengths[i]);
+            } else {
+                TextToken.fixText(new CharSlice(chars, offsets[i], lengths[i]),
+                        ds, out);
+            }
+            break;
+        case OPEN_TAG:
+        case EMPTY_TAG:
+            out.write('<');
+            out.write(nameTable[names[i]]);
+            for (int j = offsets[i], n = j + lengths[i]; j < n; j++) {
+                out.write(' ');
+                out.write(nameTable[attrNames[j]]);
+                out.write('=');
+                out.write('"');
+                TextToken.fixText(new CharSlice(chars, attrOffsets[j],
+                        attrLengths[j]), ds, out, true);
+                out.write('"');
+            }
+            if (kinds[i] == EMPTY_TAG) {
+                out.write('/');
+            }
+            out.write('>');
+            break;
+        case CLOSE_TAG:
+            out.write('<');
+            out.write('/');
+            out.write(nameTable[names[i]]);
+            out.write('>');
+            break;
+        case COMMENT:
+            out.write("<!--");
+            out.write(chars, offsets[i], lengths[i]);
+            out.write("-->");
+            break;
+        case CDATA:
+            out.write("<![CDATA[");
+            out.write(chars, offsets[i], lengths[i]);
+            out.write("]]>");
+            break;
+        default:
+            others[offsets[i]].write(out);
+        }
+    }
+
+    /**
+     * Replace token.  The data of the replaced token is not
+     * reclaimed.
+     * @param i index of token
+     * @param tok new token
+     */
+    public void set (int i, Token tok) {
+        check(i);
+        store(i, kindOf(tok), tok);
+    }
+
+    /**
+     * Drop tokens at the end of store.
+     * @param size new number of tokens
+     */
+    public void truncate (int size) {
+        if (size < 0 || size > this.size) {
+            throw new IndexOutOfBoundsException(String.valueOf(size));
+        }
+        this.size = size;
+    }
+
+    /**
+     * Merge adjoined text tokens separated by a space.  Tokens are
+     * moved in place, merged text is appended to the character
+     * buffer.
+     */
+    public void mergeText () {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (kinds[i] == TEXT && i + 1 < size && kinds[i + 1] == TEXT) {
+                int j = i;
+                int len = lengths[i];
+                boolean clean = names[i] == 1;
+                while (j + 1 < size && kinds[j + 1] == TEXT) {
+                    j++;
+                    len += 1 + lengths[j];
+                    clean &= names[j] == 1;
+                }
+                int off = reserve(len);
+                int p = off;
+                for (int k = i; k <= j; k++) {
+                    if (k > i) {
+                        chars[p++] = ' ';
+                    }
+                    System.arraycopy(chars, offsets[k], chars, p, lengths[k]);
+                    p += lengths[k];
+                }
+                kinds[n] = TEXT;
+                names[n] = clean ? 1 : 0;
+                offsets[n] = off;
+                lengths[n] = len;
+                n++;
+                i = j;
+            } else {
+                kinds[n] = kinds[i];
+                names[n] = names[i];
+                offsets[n] = offsets[i];
+                lengths[n] = lengths[i];
+                n++;
+            }
+        }
+        truncate(n);
+    }
+
+    /**
+     * Copy characters to end of character buffer.
+     * @param data characters to copy
+     * @return offset of copy
+     */
+    private int append (CharSequence data) {
+        int len = data.length();
+        int off = reserve(len);
+        if (data instanceof String) {
+            ((String) data).getChars(0, len, chars, off);
+        } else {
+            for (int i = 0; i < len; i++) {
+                chars[off + i] = data.charAt(i);
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Reserve room at end of character buffer.
+     * @param len number of characters
+     * @return offset of room
+     */
+    private int reserve (int len) {
+        if (charCount + len > chars.length) {
+            int n = Math.max(chars.length * 2 + 1, charCount + len);
+            chars = (char[]) copy(chars, new char[n], charCount);
+        }
+        int off = charCount;
+        charCount += len;
+        return off;
+    }
+
+    /**
+     * Get id of name, adding it to the name table when new.
+     * @param name tag or attribute name
+     * @return id of name
+     */
+    private int nameId (String name) {
+        int mask = nameSlots.length - 1;
+        int j = slot(name, mask);
+        for (; nameSlots[j] != 0; j = (j + 1) & mask) {
+            if (nameTable[nameSlots[j] - 1].equals(name)) {
+                return nameSlots[j] - 1;
+            }
+        }
+        if (nameCount == nameTable.length) {
+            nameTable = (String[]) copy(nameTable, new String[nameCount * 2],
+                    nameCount);
+        }
+        nameTable[nameCount] = name;
+        nameSlots[j] = ++nameCount;
+        if (nameCount * 2 > nameSlots.length) {
+            // rehash at half full
+            nameSlots = new int[nameSlots.length * 2];
+            mask = nameSlots.length - 1;
+            for (int i = 0; i < nameCount; i++) {
+                int k = slot(nameTable[i], mask);
+                while (nameSlots[k] != 0) {
+                    k = (k + 1) & mask;
+                }
+                nameSlots[k] = i + 1;
+            }
+        }
+        return nameCount - 1;
+    }
+
+    /**
+     * @param name name
+     * @param mask mask to map hash codes to slots
+     * @return first slot to probe for name
+     */
+    private static int slot (String name, int mask) {
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param from array to copy from
+     * @param to array to copy to
+     * @param n number of elements to copy
+     * @return array copied to
+     */
+    private static Object copy (Object from, Object to, int n) {
+        System.arraycopy(from, 0, to, 0, n);
+        return to;
+    }
+
+    /**
+     * @param i index to check
+     * @throws IndexOutOfBoundsException when out of range
+     */
+    private void check (int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(i));
+        }
+    }
+}